@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * AutomatonImpl.apply and hasTransitions on NFAs whose start state fans
+ * out to "fanout" states, next to the DFAImpl built from the same NFA.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutomatonBench {
+    //Chars applied per benchmark call
+    static final int STEPS = 1000;
+
+    @Param({"1", "4", "16", "64"})
+    int fanout;
+
+    AutomatonImpl nfa;
+    DFAImpl dfa;
+
+    @Setup
+    public void setup() {
+        nfa = BenchInputs.fanout_nfa(fanout);
+        dfa = nfa.determinize();
+    }
+
+    @Benchmark
+    public boolean nfa_apply() {
+        nfa.reset();
+        for (int i = 0; i < STEPS; i++) {
+            nfa.apply('a');
+        }
+        return nfa.accepts();
+    }
+
+    @Benchmark
+    public void nfa_has_transitions(Blackhole bh) {
+        nfa.reset();
+        nfa.apply('a');
+        for (int i = 0; i < STEPS; i++) {
+            bh.consume(nfa.hasTransitions('a'));
+            bh.consume(nfa.hasTransitions('b'));
+        }
+    }
+
+    @Benchmark
+    public boolean dfa_apply() {
+        dfa.reset();
+        for (int i = 0; i < STEPS; i++) {
+            dfa.apply('a');
+        }
+        return dfa.accepts();
+    }
+
+    @Benchmark
+    public void dfa_has_transitions(Blackhole bh) {
+        dfa.reset();
+        dfa.apply('a');
+        for (int i = 0; i < STEPS; i++) {
+            bh.consume(dfa.hasTransitions('a'));
+            bh.consume(dfa.hasTransitions('b'));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.Random;
+
+/*
+ * Inputs shared by the benchmarks. Every generator is seeded, so each
+ * run of a benchmark sees the same text.
+ */
+class BenchInputs {
+    static final String[] NUMS = {"1.0", ".5", "12.25", "0.125", "300.0", "7.75"};
+    static final String[] OPS = {" + ", " - ", " * ", " / ", "+", "*"};
+
+    /*
+     * A valid expression of about "length" chars: numbers, all four
+     * operators, groups up to a few levels deep and mixed whitespace.
+     */
+    static String expression(int length) {
+        Random random = new Random(length);
+        StringBuilder ret = new StringBuilder(length + 64);
+        int open = 0;
+        ret.append(NUMS[random.nextInt(NUMS.length)]);
+        while (ret.length() < length) {
+            ret.append(OPS[random.nextInt(OPS.length)]);
+            if (open < 4 && random.nextInt(6) == 0) {
+                ret.append('(');
+                open++;
+            }
+            ret.append(NUMS[random.nextInt(NUMS.length)]);
+            if (open > 0 && random.nextInt(4) == 0) {
+                ret.append(random.nextBoolean() ? ")" : ")\n\t");
+                open--;
+            }
+        }
+        while (open-- > 0) {
+            ret.append(')');
+        }
+        return ret.toString();
+    }
+
+    //"n" operators at the top level: 1.0 + 1.0 * 1.0 - ...
+    static String wide(int n) {
+        StringBuilder ret = new StringBuilder("1.0");
+        for (int i = 0; i < n; i++) {
+            ret.append(OPS[i % 4]).append("1.0");
+        }
+        return ret.toString();
+    }
+
+    //"n" nested groups: ((( ... 1.0 + 2.0 ... )))
+    static String deep(int n) {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            ret.append('(');
+        }
+        ret.append("1.0 + 2.0");
+        for (int i = 0; i < n; i++) {
+            ret.append(')');
+        }
+        return ret.toString();
+    }
+
+    /*
+     * An NFA with "fanout" branches out of its start state on 'a', each
+     * looping on 'a' and accepting, so every apply steps "fanout" states.
+     */
+    static AutomatonImpl fanout_nfa(int fanout) {
+        AutomatonImpl ret = new AutomatonImpl();
+        ret.addState(0, true, false);
+        for (int s = 1; s <= fanout; s++) {
+            ret.addState(s, false, true);
+            ret.addTransition(0, 'a', s);
+            ret.addTransition(s, 'a', s);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * CompilerFrontendImpl end to end: scan, parse and, for run_eval,
+ * compile and evaluate one generated expression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontendBench {
+    @Param({"64", "4096", "262144"})
+    int length;
+
+    CompilerFrontend front;
+    String input;
+
+    @Setup
+    public void setup() {
+        front = new CompilerFrontendImpl();
+        input = BenchInputs.expression(length);
+    }
+
+    @Benchmark
+    public Expr run() throws Exception {
+        return front.run(input);
+    }
+
+    @Benchmark
+    public float run_eval() throws Exception {
+        return front.run_eval(input);
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * LexerImpl on generated expressions from 1 KB to 100 MB, through the
+ * TokenList API (scan), the TokenStream API (scan_stream) and the chunked
+ * parallel scan (scan_parallel, on the common pool), with the lexer
+ * CompilerFrontendImpl builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LexerBench {
+    @Param({"1024", "65536", "1048576", "104857600"})
+    int length;
+
+    LexerImpl lexer;
+    String input;
+
+    @Setup
+    public void setup() {
+        lexer = CompilerFrontendImpl.build_lexer();
+        input = BenchInputs.expression(length);
+    }
+
+    @Benchmark
+    public TokenList scan() {
+        return lexer.scan(input);
+    }
+
+    @Benchmark
+    public TokenStream scan_stream() {
+        return lexer.scan_stream(input);
+    }
+
+    @Benchmark
+    public TokenStream scan_stream_skip_whitespace() {
+        return lexer.scan_stream(input, false);
+    }
+
+    @Benchmark
+    public TokenStream scan_parallel_skip_whitespace() {
+        return lexer.scan_parallel(input, false);
+    }
+}
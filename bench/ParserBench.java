@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The parsers on pre-scanned tokens of wide (many operators at one level)
+ * and deep (many nested groups) expressions. "size" is the number of
+ * operators or groups; ParserImpl recurses once per level of either, so
+ * sizes stay within a default thread stack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBench {
+    @Param({"ParserImpl", "IterativeParserImpl", "LL1ParserImpl"})
+    String parser_type;
+
+    @Param({"16", "128", "1024"})
+    int size;
+
+    Parser parser;
+    TokenStream wide;
+    TokenStream deep;
+
+    @Setup
+    public void setup() {
+        if (parser_type.equals("ParserImpl")) {
+            parser = new ParserImpl();
+        } else if (parser_type.equals("IterativeParserImpl")) {
+            parser = new IterativeParserImpl();
+        } else {
+            parser = new LL1ParserImpl();
+        }
+        LexerImpl lexer = CompilerFrontendImpl.build_lexer();
+        wide = lexer.scan_stream(BenchInputs.wide(size), false);
+        deep = lexer.scan_stream(BenchInputs.deep(size), false);
+    }
+
+    @Benchmark
+    public Expr parse_wide() throws Exception {
+        return parser.parse(wide);
+    }
+
+    @Benchmark
+    public Expr parse_deep() throws Exception {
+        return parser.parse(deep);
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.Arrays;
+
+/*
+ * IterativeParserImpl building the tree in an ExprArena rather than out
+ * of Expr objects. The operand stack holds arena node ids and literals
+ * are read with TokenStream.number, so once the arena and the stacks have
+ * grown to fit, a parse of ordinary literals allocates nothing.
+ *
+ * As a Parser, do_parse parses into an arena of the parser's own and
+ * returns the Expr adapter of the result, so ArenaParser can stand in for
+ * any other parser. Callers that want the arena itself use parse(tokens,
+ * arena).
+ */
+public class ArenaParser extends IterativeParserImpl {
+    final ExprArena own = new ExprArena();
+    //Arena the current parse builds into
+    ExprArena arena;
+    int[] nodes = new int[16];
+    int num_nodes;
+
+    /*
+     * Clears "target", parses "token_stream" into it and returns the root
+     * node, which is also left in target.root(). After a parsing error the
+     * arena holds no complete tree and its root is -1.
+     */
+    public int parse(TokenStream token_stream, ExprArena target) throws Exception {
+        tokens = token_stream;
+        idx = 0;
+        return build(target);
+    }
+
+    @Override
+    public Expr do_parse() throws Exception {
+        return own.to_expr(build(own));
+    }
+
+    int build(ExprArena target) throws Exception {
+        arena = target;
+        target.clear();
+        num_nodes = 0;
+        shift_reduce();
+        target.root = nodes[0];
+        return target.root;
+    }
+
+    @Override
+    void push_literal() {
+        if (num_nodes == nodes.length) {
+            nodes = Arrays.copyOf(nodes, num_nodes * 2);
+        }
+        nodes[num_nodes++] = arena.add_literal(tokens.number(idx));
+    }
+
+    @Override
+    void reduce() {
+        int op = ops[--num_ops];
+        int e2 = nodes[--num_nodes];
+        int e1 = nodes[num_nodes - 1];
+        nodes[num_nodes - 1] = arena.add_binary(ExprArena.op_of(op), e1, e2);
+    }
+}
@@ -22,6 +22,17 @@ public interface Automaton {
      */
     void addTransition(int s_initial, char label, int s_final);
 
+    /*
+     * Add a transition from state "s_initial" to state "s_final"
+     * for every label from "lo" to "hi", both included. By
+     * default this adds one transition per label.
+     */
+    default void addTransition(int s_initial, char lo, char hi, int s_final) {
+        for (int c = lo; c <= hi; c++) {
+            addTransition(s_initial, (char) c, s_final);
+        }
+    }
+
 /*
 * Execution operations.
 */
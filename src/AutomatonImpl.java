@@ -1,10 +1,11 @@
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Objects;
 
 public class AutomatonImpl implements Automaton {
 
-    class StateLabelPair {
+    static class StateLabelPair {
         int state;
         char label;
         public StateLabelPair(int state_, char label_) { state = state_; label = label_; }
@@ -21,19 +22,104 @@ public class AutomatonImpl implements Automaton {
         }
     }
 
+    //A transition on every char from lo to hi, both included
+    static class Range {
+        final int state;
+        final char lo;
+        final char hi;
+        final int target;
+        public Range(int state_, char lo_, char hi_, int target_) { state = state_; lo = lo_; hi = hi_; target = target_; }
+    }
+
     HashSet<Integer> start_states;
     HashSet<Integer> accept_states;
-    HashSet<Integer> current_states;
     HashMap<StateLabelPair, HashSet<Integer>> transitions;
+    ArrayList<Range> ranges;
+    //Once frozen the definition above never changes and may be shared between cursors
+    boolean frozen = false;
+
+    //The definition above packed for execution, rebuilt on the first run after a change
+    NFAProgram program;
+    boolean stale = true;
+    //Current states, and the set apply fills before the two are swapped
+    NFAProgram.StateSet current;
+    NFAProgram.StateSet next;
+    //Set by lazy(); runs replace the two sets above
+    LazyDFA lazy_dfa;
 
     public AutomatonImpl() {
         start_states = new HashSet<Integer>();
         accept_states = new HashSet<Integer>();
         transitions = new HashMap<StateLabelPair, HashSet<Integer>>();
+        ranges = new ArrayList<Range>();
+    }
+
+    /*
+     * Makes the states and transitions of this automaton read-only.
+     * addState and addTransition throw from then on, and cursor() may
+     * be used to run the automaton from several threads.
+     */
+    public AutomatonImpl freeze() {
+        frozen = true;
+        prepare();
+        return this;
+    }
+
+    /*
+     * Returns a new automaton that shares this frozen definition but has
+     * its own current states, so each thread can step its own cursor.
+     */
+    public AutomatonImpl cursor() {
+        if (!frozen) {
+            throw new IllegalStateException("Only a frozen AutomatonImpl can hand out cursors");
+        }
+        return new AutomatonImpl(this);
+    }
+
+    /*
+     * Runs this frozen automaton as a DFA built on demand, keeping at most
+     * "max_states" DFA states at a time. Meant for automata whose full
+     * determinize() would be too large; see LazyDFA. Each cursor gets its
+     * own cache of the same size.
+     */
+    public AutomatonImpl lazy(int max_states) {
+        if (!frozen) {
+            throw new IllegalStateException("Only a frozen AutomatonImpl can run as a lazy DFA");
+        }
+        lazy_dfa = new LazyDFA(program, max_states);
+        lazy_dfa.reset();
+        return this;
+    }
+
+    /*
+     * Hit, miss, flush and fallback counts of the lazy DFA, or null if
+     * lazy() was never called.
+     */
+    public LazyDFA.Stats lazyStats() {
+        return lazy_dfa == null ? null : lazy_dfa.stats();
+    }
+
+    private AutomatonImpl(AutomatonImpl definition) {
+        start_states = definition.start_states;
+        accept_states = definition.accept_states;
+        transitions = definition.transitions;
+        ranges = definition.ranges;
+        frozen = true;
+        program = definition.program;
+        stale = false;
+        current = new NFAProgram.StateSet(program.num_states);
+        next = new NFAProgram.StateSet(program.num_states);
+        if (definition.lazy_dfa != null) {
+            lazy_dfa = new LazyDFA(program, definition.lazy_dfa.max_states);
+        }
+        reset();
     }
 
     @Override
     public void addState(int s, boolean is_start, boolean is_accept) { 
+        if (frozen) {
+            throw new IllegalStateException("Cannot add a state to a frozen AutomatonImpl");
+        }
         //Add new state and mark it as start state or accept state
         if (is_start) {
             start_states.add(s);
@@ -41,61 +127,116 @@ public class AutomatonImpl implements Automaton {
         if (is_accept) {
             accept_states.add(s);
         }
+        stale = true;
     }
 
     @Override
     public void addTransition(int s_initial, char label, int s_final) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot add a transition to a frozen AutomatonImpl");
+        }
         //We add a new rule to the transitions map
         StateLabelPair key = new StateLabelPair(s_initial, label);
         transitions.putIfAbsent(key, new HashSet<Integer>());
         transitions.get(key).add(s_final);
+        stale = true;
+    }
+
+    /*
+     * Adds a transition on every char from "lo" to "hi", both included,
+     * as one range. The chars of a range are never enumerated, so a range
+     * costs as little as a single char however wide it is.
+     */
+    @Override
+    public void addTransition(int s_initial, char lo, char hi, int s_final) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot add a transition to a frozen AutomatonImpl");
+        }
+        if (lo > hi) {
+            throw new IllegalArgumentException("Empty char range '" + lo + "'..'" + hi + "'");
+        }
+        if (lo == hi) {
+            addTransition(s_initial, lo, s_final);
+            return;
+        }
+        ranges.add(new Range(s_initial, lo, hi, s_final));
+        stale = true;
+    }
+
+    /*
+     * Brings program up to date with the definition. The current states
+     * carry over, so states and transitions may still be added between
+     * two calls to apply.
+     */
+    void prepare() {
+        if (!stale) {
+            return;
+        }
+        NFAProgram old = program;
+        NFAProgram.StateSet old_current = current;
+        program = new NFAProgram(start_states, accept_states, transitions, ranges);
+        current = new NFAProgram.StateSet(program.num_states);
+        next = new NFAProgram.StateSet(program.num_states);
+        if (old != null) {
+            for (int i = 0; i < old_current.size; i++) {
+                current.add(program.index.get(old.ids[old_current.members[i]]));
+            }
+        }
+        stale = false;
     }
 
     @Override
     public void reset() {
-        //Prepares the machine for a new run
-        //Reset current states to be a copy of the start states
-        current_states = new HashSet<Integer>(start_states);
+        //Prepares the machine for a new run from the start states
+        prepare();
+        if (lazy_dfa != null) {
+            lazy_dfa.reset();
+            return;
+        }
+        program.start(current);
     }
 
     @Override
     public void apply(char input) {
-        //A new empty Hashset to store the next states
-        HashSet<Integer> next_states = new HashSet<Integer>();
-        
-        //We loop through every state in the current states set
-        for (int state : current_states) {
-            StateLabelPair key = new StateLabelPair(state, input);
-            //Then we check the transitions map to see where the input character leads us
-            if (transitions.containsKey(key)) {
-                //If we have a transition, we add the destination state to the next states set
-                next_states.addAll(transitions.get(key));
-            }
+        prepare();
+        if (lazy_dfa != null) {
+            lazy_dfa.apply(input);
+            return;
         }
-        
-        //At last we replace the current states with the next states set
-        current_states = next_states;
+        //Fill the next set from the targets of every current state on input
+        program.step(current, program.classOf(input), next);
+
+        //Swap the two sets so the old current set is reused next time
+        NFAProgram.StateSet tmp = current;
+        current = next;
+        next = tmp;
     }
 
     @Override
     public boolean accepts() {
-        //If any current state is an accept state, we accept the input
-        for (int state : current_states) {
-            if (accept_states.contains(state)) {
-                return true;
-            }
+        prepare();
+        if (lazy_dfa != null) {
+            return lazy_dfa.accepts();
         }
-        return false;
+        //If any current state is an accept state, we accept the input
+        return program.accepts(current);
+    }
+
+    /*
+     * Compiles this automaton into an equivalent DFAImpl using subset
+     * construction. Later changes to this automaton do not affect the
+     * returned DFA.
+     */
+    public DFAImpl determinize() {
+        return DFAImpl.fromNFA(this);
     }
 
     @Override
     public boolean hasTransitions(char label) {
-        for (int state : current_states) {
-            StateLabelPair key = new StateLabelPair(state, label);
-            if (transitions.containsKey(key)) {
-                return true;
-            }
+        prepare();
+        if (lazy_dfa != null) {
+            return lazy_dfa.hasTransitions(label);
         }
-        return false;
+        return program.hasTransitions(current, program.classOf(label));
     }
-}
\ No newline at end of file
+}
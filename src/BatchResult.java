@@ -0,0 +1,50 @@
+/*
+ * The outcome of compiling one input of a batch: either the parsed
+ * expression (and its value, if evaluation was requested) or the
+ * exception that lexing or parsing threw for it.
+ */
+public class BatchResult {
+    final Expr expr;
+    //Whether "value" was computed; NaN is also a value, e.g. of 0.0 / 0.0
+    final boolean evaluated;
+    final float value;
+    final Exception error;
+
+    BatchResult(Expr expr_, boolean evaluated_, float value_, Exception error_) {
+        expr = expr_;
+        evaluated = evaluated_;
+        value = value_;
+        error = error_;
+    }
+
+    public boolean ok() {
+        return error == null;
+    }
+
+    public Expr getExpr() {
+        return expr;
+    }
+
+    public boolean isEvaluated() {
+        return evaluated;
+    }
+
+    /*
+     * The value of the expression, or NaN if it was not evaluated (see
+     * isEvaluated).
+     */
+    public float getValue() {
+        return value;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public String toString() {
+        if (error != null) {
+            return "error: " + error.getMessage();
+        }
+        return evaluated ? expr.toString() + " = " + value : expr.toString();
+    }
+}
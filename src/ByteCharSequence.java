@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+
+/*
+ * A read-only CharSequence over bytes [offset, offset + length) of a
+ * ByteBuffer, one char per byte (ISO-8859-1, so ASCII text reads as
+ * itself). Nothing is copied or decoded until toString is called, which
+ * lets the lexer scan a memory-mapped file in place.
+ *
+ * Only absolute gets are used, so many views may read the same buffer
+ * from different threads at once.
+ */
+class ByteCharSequence implements CharSequence {
+    final ByteBuffer bytes;
+    final int offset;
+    final int length;
+
+    ByteCharSequence(ByteBuffer bytes_, int offset_, int length_) {
+        bytes = bytes_;
+        offset = offset_;
+        length = length_;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new ByteCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (bytes.get(offset + i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
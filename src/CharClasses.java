@@ -0,0 +1,78 @@
+import java.util.HashMap;
+
+/*
+ * Helpers for alphabet compression. Two chars belong to the same class
+ * when every automaton involved treats them the same way, so a table
+ * needs one column per class rather than one per char. Digits, for
+ * example, are one column however many of them label a transition.
+ */
+class CharClasses {
+    static final int DEAD = -1;
+
+    /*
+     * Splits the groups in "group" so that two members stay together only
+     * if they were together before and have the same "value". Members in
+     * group DEAD are left alone. Groups are renumbered from 0 in order of
+     * first member, and their number is returned.
+     */
+    static int refine(int[] group, int[] value) {
+        HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+        for (int i = 0; i < group.length; i++) {
+            if (group[i] == DEAD) {
+                continue;
+            }
+            long key = ((long) group[i] << 32) | (value[i] & 0xffffffffL);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            group[i] = id;
+        }
+        return ids.size();
+    }
+
+    /*
+     * Returns, for each column of "table", the column it merges into when
+     * columns that are equal in every row are merged. New columns are
+     * numbered in order of their first old column.
+     */
+    static int[] mergeColumns(int[] table, int num_rows, int num_classes) {
+        int[] merged = new int[num_classes];
+        int[] column = new int[num_classes];
+        for (int row = 0; row < num_rows; row++) {
+            System.arraycopy(table, row * num_classes, column, 0, num_classes);
+            refine(merged, column);
+        }
+        return merged;
+    }
+
+    static int count(int[] merged) {
+        int n = 0;
+        for (int cls : merged) {
+            n = Math.max(n, cls + 1);
+        }
+        return n;
+    }
+
+    //Rewrites a char class map after mergeColumns
+    static int[] remapChars(int[] char_class, int[] merged) {
+        int[] ret = new int[char_class.length];
+        for (int c = 0; c < char_class.length; c++) {
+            ret[c] = char_class[c] == DEAD ? DEAD : merged[char_class[c]];
+        }
+        return ret;
+    }
+
+    //Rewrites a table after mergeColumns, keeping one copy of each merged column
+    static int[] remapTable(int[] table, int num_rows, int num_classes, int[] merged) {
+        int new_classes = count(merged);
+        int[] ret = new int[num_rows * new_classes];
+        for (int row = 0; row < num_rows; row++) {
+            for (int cls = 0; cls < num_classes; cls++) {
+                ret[row * new_classes + merged[cls]] = table[row * num_classes + cls];
+            }
+        }
+        return ret;
+    }
+}
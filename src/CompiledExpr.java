@@ -0,0 +1,166 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/*
+ * An Expr flattened into postfix code: a byte[] of opcodes and a float[]
+ * of the literals in the order PUSH reads them. eval runs the code on a
+ * primitive float stack, so evaluating costs no virtual calls, no pointer
+ * chasing and no allocation, and gives bit-for-bit the same result as
+ * Expr.eval().
+ *
+ * The deeper operand of every node is emitted first (Sethi-Ullman order),
+ * with RSUB and RDIV covering the case where the right operand ends up
+ * below the left one. A right-leaning chain like 1.0 + (2.0 + (3.0 + ...))
+ * therefore needs a stack of two floats, not one per term. Compiling is
+ * iterative too, so trees of any depth are fine.
+ */
+public class CompiledExpr {
+    static final byte PUSH = 0;
+    static final byte ADD = 1;
+    static final byte SUB = 2;
+    static final byte MUL = 3;
+    static final byte DIV = 4;
+    //Same as SUB and DIV with the two topmost operands swapped
+    static final byte RSUB = 5;
+    static final byte RDIV = 6;
+
+    final byte[] code;
+    final float[] constants;
+    //Largest number of operands on the stack at any point of eval
+    final int max_stack;
+
+    CompiledExpr(byte[] code_, float[] constants_, int max_stack_) {
+        code = code_;
+        constants = constants_;
+        max_stack = max_stack_;
+    }
+
+    public static CompiledExpr compile(Expr root) {
+        //First pass, post-order: how many stack slots each subtree needs
+        IdentityHashMap<Expr, Integer> need = new IdentityHashMap<Expr, Integer>();
+        Expr[] todo = new Expr[16];
+        boolean[] expanded = new boolean[16];
+        int top = 0;
+        int code_length = 0;
+        int num_constants = 0;
+        todo[top] = root;
+        expanded[top] = false;
+        top++;
+        while (top > 0) {
+            Expr e = todo[top - 1];
+            if (!(e instanceof BinaryExpr)) {
+                top--;
+                need.put(e, 1);
+                code_length++;
+                num_constants++;
+            } else if (!expanded[top - 1]) {
+                expanded[top - 1] = true;
+                BinaryExpr b = (BinaryExpr) e;
+                if (top + 2 > todo.length) {
+                    todo = Arrays.copyOf(todo, todo.length * 2);
+                    expanded = Arrays.copyOf(expanded, expanded.length * 2);
+                }
+                todo[top] = b.getE1();
+                expanded[top] = false;
+                top++;
+                todo[top] = b.getE2();
+                expanded[top] = false;
+                top++;
+            } else {
+                top--;
+                BinaryExpr b = (BinaryExpr) e;
+                int n1 = need.get(b.getE1());
+                int n2 = need.get(b.getE2());
+                need.put(e, n1 == n2 ? n1 + 1 : Math.max(n1, n2));
+                code_length++;
+            }
+        }
+
+        //Second pass: emit code, deeper operand first. A null node in todo means "emit ops[i]"
+        byte[] code = new byte[code_length];
+        float[] constants = new float[num_constants];
+        byte[] ops = new byte[todo.length];
+        int pc = 0;
+        int k = 0;
+        top = 0;
+        todo[top++] = root;
+        while (top > 0) {
+            Expr e = todo[--top];
+            if (e == null) {
+                code[pc++] = ops[top];
+            } else if (e instanceof FloatExpr) {
+                constants[k++] = ((FloatExpr) e).getLiteral();
+                code[pc++] = PUSH;
+            } else {
+                BinaryExpr b = (BinaryExpr) e;
+                boolean right_first = need.get(b.getE2()) > need.get(b.getE1());
+                byte op;
+                if (e instanceof PlusExpr) {
+                    op = ADD;
+                } else if (e instanceof TimesExpr) {
+                    op = MUL;
+                } else if (e instanceof MinusExpr) {
+                    op = right_first ? RSUB : SUB;
+                } else {
+                    op = right_first ? RDIV : DIV;
+                }
+                if (top + 3 > todo.length) {
+                    todo = Arrays.copyOf(todo, todo.length * 2);
+                    ops = Arrays.copyOf(ops, ops.length * 2);
+                }
+                todo[top] = null;
+                ops[top] = op;
+                top++;
+                todo[top++] = right_first ? b.getE1() : b.getE2();
+                todo[top++] = right_first ? b.getE2() : b.getE1();
+            }
+        }
+
+        return new CompiledExpr(code, constants, need.get(root));
+    }
+
+    public float eval() {
+        return eval(new float[max_stack]);
+    }
+
+    /*
+     * Evaluates using "stack" as the operand stack. It must hold at
+     * least max_stack floats; reusing one array makes eval allocation-free.
+     */
+    public float eval(float[] stack) {
+        int sp = 0;
+        int k = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case PUSH:
+                    stack[sp++] = constants[k++];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case RSUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp] - stack[sp - 1];
+                    break;
+                default:
+                    sp--;
+                    stack[sp - 1] = stack[sp] / stack[sp - 1];
+                    break;
+            }
+        }
+        return stack[0];
+    }
+}
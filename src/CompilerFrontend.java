@@ -1,10 +1,42 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ObjLongConsumer;
+
 public abstract class CompilerFrontend {
+    //Largest region of a file mapped at once; FileChannel.map cannot map more than Integer.MAX_VALUE bytes
+    static final int MAX_MAPPED_CHUNK = Integer.MAX_VALUE;
+    //run_file tasks stop splitting below this many bytes of records
+    static final int FILE_GRAIN = 1 << 16;
+
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
     boolean debug = false;
     Lexer lex;
     Parser parse;
+    //Made on the first run_arena
+    ArenaParser arena_parser;
+    //Receives phase timings and counts from every run, or null to measure nothing
+    volatile MetricsListener metrics;
+    //Whether parsers share identical subtrees, see set_sharing
+    volatile boolean sharing;
+    //Runs on every parsed tree before it is returned, or null
+    volatile ExprOptimizer optimizer;
+    //Results of earlier runs by input, or null
+    volatile ResultCache cache;
 
     public CompilerFrontend() {
-        parse = new ParserImpl();
+        parse = new_parser();
     }
 
     public CompilerFrontend(boolean debug_) {
@@ -25,17 +57,36 @@ public abstract class CompilerFrontend {
      */
     protected abstract void init_lexer();
 
+    /*
+     * Returns a fresh parser. Parsers keep per-parse state, so every
+     * thread that parses needs its own.
+     */
+    protected Parser new_parser() {
+        return new ParserImpl();
+    }
+
     public TokenList removeWhitespace(TokenList lst) {
+        //Drop leading whitespace, then unlink whitespace cells as we go
+        while(lst != null && lst.elem.ty == TokenType.WHITE_SPACE) {
+            lst = lst.rest;
+        }
         if(lst == null) {
             return null;
         }
 
-        lst.rest = removeWhitespace(lst.rest);
-        if(lst.elem.ty == TokenType.WHITE_SPACE) {
-            return lst.rest;
-        } else {
-            return lst;
+        TokenList prev = lst;
+        while(prev.rest != null) {
+            if(prev.rest.elem.ty == TokenType.WHITE_SPACE) {
+                prev.rest = prev.rest.rest;
+            } else {
+                prev = prev.rest;
+            }
         }
+        return lst;
+    }
+
+    public TokenStream removeWhitespace(TokenStream tokens) {
+        return tokens.without(TokenType.WHITE_SPACE);
     }
 
     public TokenList run_lexer(String input) {
@@ -48,27 +99,429 @@ public abstract class CompilerFrontend {
         return lex.scan(input);
     }
 
+    /*
+     * Makes every later run report to "metrics", or stops reporting if
+     * it is null.
+     */
+    public void set_metrics(MetricsListener metrics_) {
+        metrics = metrics_;
+    }
+
+    /*
+     * Makes later runs, including batches, parse with an
+     * InterningExprFactory if "sharing_" is true, so every run returns a
+     * DAG in which identical subtrees are one node. Evaluate such a result
+     * with InterningExprFactory.eval_shared to compute every node once.
+     */
+    public void set_sharing(boolean sharing_) {
+        sharing = sharing_;
+        parse.set_factory(sharing_ ? new InterningExprFactory() : ExprFactory.PLAIN);
+        clear_cache();
+    }
+
+    /*
+     * Makes later runs, including batches, pass every parsed tree through
+     * "optimizer_" (see ExprOptimizer), or return it as parsed if null.
+     * With ExprOptimizer.FOLD every run returns a single FloatExpr, so
+     * evaluating the result, as often as needed, is one load.
+     */
+    public void set_optimizer(ExprOptimizer optimizer_) {
+        optimizer = optimizer_;
+        clear_cache();
+    }
+
+    /*
+     * Makes later runs, including batches and files, look "input" up in
+     * "cache_" first, and store what they compile there, or stops caching
+     * if it is null. Debug runs always compile, so that every stage is
+     * printed. With ExprOptimizer.FOLD the cached trees are values, so a
+     * hit also skips evaluation. The cache can be shared by several
+     * frontends, as long as they compile the same way.
+     */
+    public void set_cache(ResultCache cache_) {
+        cache = cache_;
+    }
+
+    //Results compiled under other settings must not be returned
+    void clear_cache() {
+        ResultCache c = cache;
+        if (c != null) {
+            c.clear();
+        }
+    }
+
+    Expr optimized(Expr e) {
+        ExprOptimizer o = optimizer;
+        return o == null ? e : o.optimize(e);
+    }
+
     public Expr run(String input) throws Exception {
+        ResultCache c = cache;
+        if (c == null || debug) {
+            return run_uncached(input);
+        }
+        Expr e = cached(c, input, metrics);
+        if (e == null) {
+            e = run_uncached(input);
+            c.put(input, e);
+        }
+        return e;
+    }
+
+    //Looks "input" up in "c", reporting whether it was there to "m" unless it is null
+    static Expr cached(ResultCache c, String input, MetricsListener m) {
+        Expr e = c.get(input);
+        if (m != null) {
+            m.cache_lookup(e != null);
+        }
+        return e;
+    }
+
+    Expr run_uncached(String input) throws Exception {
+        MetricsListener m = metrics;
+        if (m != null) {
+            return optimized(run_measured(input, m));
+        }
+        init_lexer();
+
+        if (!debug) {
+            //Skipped tokens such as whitespace never leave the lexer
+            return optimized(parse.parse(scan(input)));
+        }
+
+        //Debug runs keep the whitespace so every stage can be printed
+        System.out.println("Input: " + input);
+
+        TokenStream tokens = lex.scan_stream(input);
+        System.out.println("Tokens: " + tokens.toString());
+
+        TokenStream tokens_nows = removeWhitespace(tokens);
+        System.out.println("Tokens without whitespace: " + tokens_nows.toString());
+
+        Expr e = parse.parse(tokens_nows);
+
+        return optimized(e);
+    }
+
+    /*
+     * run, timing every phase and reporting it to "m". Debug output is
+     * printed outside the timed sections.
+     */
+    Expr run_measured(String input, MetricsListener m) throws Exception {
+        long bytes = allocated_bytes();
+        long t0 = System.nanoTime();
         init_lexer();
+        long t1 = System.nanoTime();
+        m.phase(MetricsListener.Phase.INIT_LEXER, t1 - t0);
 
         if (debug) {
             System.out.println("Input: " + input);
         }
+        Expr e = measured(input, parse, m, debug);
+        if (bytes != -1) {
+            m.bytes_allocated(allocated_bytes() - bytes);
+        }
+        return e;
+    }
 
-        TokenList tokens = lex.scan(input);
+    /*
+     * Scans and parses "input" with "parser", reporting each phase, the
+     * tokens and the automaton steps to "m". If "print" is set, the tokens
+     * are printed before and after whitespace removal as in a debug run;
+     * otherwise whitespace is dropped during the scan.
+     */
+    Expr measured(CharSequence input, Parser parser, MetricsListener m, boolean print) throws Exception {
+        long t0 = System.nanoTime();
+        TokenStream tokens = print ? lex.scan_stream(input, true) : scan(input);
+        long t1 = System.nanoTime();
+        m.phase(MetricsListener.Phase.SCAN, t1 - t0);
+        report_tokens(tokens, m);
 
-        if (debug) {
+        if (print) {
             System.out.println("Tokens: " + tokens.toString());
+            t1 = System.nanoTime();
+            tokens = removeWhitespace(tokens);
+            long t2 = System.nanoTime();
+            m.phase(MetricsListener.Phase.REMOVE_WHITESPACE, t2 - t1);
+            System.out.println("Tokens without whitespace: " + tokens.toString());
         }
 
-        TokenList tokens_nows = removeWhitespace(tokens);
+        long t2 = System.nanoTime();
+        Expr e = parser.parse(tokens);
+        m.phase(MetricsListener.Phase.PARSE, System.nanoTime() - t2);
+        return e;
+    }
 
-        if (debug) {
-            System.out.println("Tokens without whitespace: " + tokens_nows.toString());
+    /*
+     * Scans "input" without the skipped tokens. Inputs longer than one
+     * chunk are scanned in parallel chunks (see LexerImpl.scan_parallel),
+     * since a single huge expression would otherwise keep one core busy
+     * while the others wait.
+     */
+    TokenStream scan(CharSequence input) {
+        if (input.length() > LexerImpl.PARALLEL_CHUNK && lex instanceof LexerImpl) {
+            return ((LexerImpl) lex).scan_parallel(input, false);
         }
+        return lex.scan_stream(input, false);
+    }
 
-        Expr e = parse.parse(tokens_nows);
+    static void report_tokens(TokenStream tokens, MetricsListener m) {
+        int[] counts = new int[TokenStream.TYPES.length];
+        for (int i = 0; i < tokens.size; i++) {
+            counts[tokens.types[i]]++;
+        }
+        for (int t = 0; t < counts.length; t++) {
+            if (counts[t] > 0) {
+                m.tokens(TokenStream.TYPES[t], counts[t]);
+            }
+        }
+        m.automaton_steps(tokens.steps, tokens.backtracks);
+    }
 
-        return e;
+    //Bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+    static long allocated_bytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Compiles and evaluates "input".
+     */
+    public float run_eval(String input) throws Exception {
+        return CompiledExpr.compile(run(input)).eval();
+    }
+
+    /*
+     * Compiles "input" into "arena" instead of Expr objects and returns the
+     * root node (see ExprArena). The arena is cleared first, so reusing one
+     * arena for input after input allocates nothing once it is big enough.
+     */
+    public int run_arena(CharSequence input, ExprArena arena) throws Exception {
+        init_lexer();
+        if (arena_parser == null) {
+            arena_parser = new ArenaParser();
+        }
+        return arena_parser.parse(scan(input), arena);
+    }
+
+    /*
+     * Compiles "input" and keeps its tokens and tree, so that after each
+     * small edit only the part that changed is scanned and parsed again
+     * (see IncrementalParse). An error in the input is kept as well, and
+     * thrown by getExpr.
+     */
+    public IncrementalParse run_incremental(String input) {
+        init_lexer();
+        return new IncrementalParse(lex, input);
+    }
+
+    /*
+     * Compiles every input independently on the common ForkJoinPool, and
+     * evaluates it too if "evaluate" is true. Result i belongs to input i.
+     * Errors are reported per input instead of being thrown. See
+     * run_batch(List, boolean, ForkJoinPool).
+     */
+    public List<BatchResult> run_batch(List<String> inputs, boolean evaluate) {
+        return run_batch(inputs, evaluate, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Like run_batch(inputs, evaluate), but on "pool". Inputs are split
+     * into ranges and each range is compiled by one task with its own
+     * parser. All tasks share the lexer from init_lexer, which must
+     * support concurrent scans (a frozen LexerImpl does). The debug flag
+     * is ignored.
+     */
+    public List<BatchResult> run_batch(List<String> inputs, boolean evaluate, ForkJoinPool pool) {
+        init_lexer();
+        BatchResult[] results = new BatchResult[inputs.size()];
+        //About eight ranges per worker keeps the pool busy when inputs differ in size
+        int grain = Math.max(1, inputs.size() / (pool.getParallelism() * 8));
+        pool.invoke(new BatchTask(inputs, evaluate, results, 0, inputs.size(), grain));
+        return new ArrayList<BatchResult>(Arrays.asList(results));
+    }
+
+    @SuppressWarnings("serial")
+    class BatchTask extends RecursiveAction {
+        final List<String> inputs;
+        final boolean evaluate;
+        final BatchResult[] results;
+        final int lo;
+        final int hi;
+        final int grain;
+
+        BatchTask(List<String> inputs_, boolean evaluate_, BatchResult[] results_, int lo_, int hi_, int grain_) {
+            inputs = inputs_;
+            evaluate = evaluate_;
+            results = results_;
+            lo = lo_;
+            hi = hi_;
+            grain = grain_;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > grain) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new BatchTask(inputs, evaluate, results, lo, mid, grain),
+                          new BatchTask(inputs, evaluate, results, mid, hi, grain));
+                return;
+            }
+
+            BatchWorker worker = new BatchWorker();
+            for (int i = lo; i < hi; i++) {
+                results[i] = worker.run(inputs.get(i), evaluate);
+            }
+        }
+    }
+
+    /*
+     * Compiles inputs one after another on one thread, with its own parser
+     * and a reusable evaluation stack. Like run, it looks inputs up in the
+     * cache first and stores what it compiles there.
+     */
+    class BatchWorker {
+        final Parser parser = new_parser();
+        float[] stack = new float[16];
+
+        BatchWorker() {
+            if (sharing) {
+                parser.set_factory(new InterningExprFactory());
+            }
+        }
+
+        BatchResult run(CharSequence input, boolean evaluate) {
+            MetricsListener m = metrics;
+            ResultCache rc = cache;
+            try {
+                String key = rc == null ? null : input.toString();
+                Expr e = rc == null ? null : cached(rc, key, m);
+                if (e == null) {
+                    e = optimized(m == null ? parser.parse(scan(input)) : measured(input, parser, m, false));
+                    if (rc != null) {
+                        rc.put(key, e);
+                    }
+                }
+                float value = Float.NaN;
+                if (evaluate) {
+                    CompiledExpr c = CompiledExpr.compile(e);
+                    if (c.max_stack > stack.length) {
+                        stack = new float[c.max_stack];
+                    }
+                    value = c.eval(stack);
+                }
+                return new BatchResult(e, evaluate, value, null);
+            } catch (Exception ex) {
+                return new BatchResult(null, false, Float.NaN, ex);
+            }
+        }
+    }
+
+    /*
+     * Compiles every line of the file at "path" as one input, on the common
+     * ForkJoinPool, and evaluates it too if "evaluate" is true. Result i
+     * belongs to the i-th non-empty line. See run_file(Path, boolean,
+     * ForkJoinPool, ObjLongConsumer), which does not keep every result in
+     * memory.
+     */
+    public List<BatchResult> run_file(Path path, boolean evaluate) throws IOException {
+        ConcurrentSkipListMap<Long, BatchResult> results = new ConcurrentSkipListMap<Long, BatchResult>();
+        run_file(path, evaluate, ForkJoinPool.commonPool(), (r, offset) -> results.put(offset, r));
+        return new ArrayList<BatchResult>(results.values());
+    }
+
+    /*
+     * Compiles a file of newline-separated expressions without reading it
+     * into Strings. The file is memory-mapped in chunks of at most
+     * MAX_MAPPED_CHUNK bytes that end on a newline, and the lexer scans
+     * each line in place through a ByteCharSequence, one char per byte.
+     * Within a chunk, lines are split into ranges and compiled in parallel
+     * on "pool" as in run_batch. Empty lines are skipped.
+     *
+     * "sink" receives each result with the byte offset of its line in the
+     * file. It is called from several threads at once and in no particular
+     * order, so it must be thread-safe.
+     */
+    public void run_file(Path path, boolean evaluate, ForkJoinPool pool, ObjLongConsumer<BatchResult> sink) throws IOException {
+        init_lexer();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            while (pos < size) {
+                int length = (int) Math.min(size - pos, MAX_MAPPED_CHUNK);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                if (pos + length < size) {
+                    //Leave the last, partial line to the next chunk
+                    int end = length;
+                    while (end > 0 && chunk.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line at byte " + pos + " of " + path + " is longer than " + MAX_MAPPED_CHUNK + " bytes");
+                    }
+                    length = end;
+                }
+                pool.invoke(new FileTask(chunk, pos, 0, length, evaluate, sink));
+                pos += length;
+            }
+        }
+    }
+
+    /*
+     * Compiles the lines in bytes [lo, hi) of a mapped chunk. "lo" is
+     * always the start of a line, and "hi" the end of the chunk or just
+     * past a newline.
+     */
+    @SuppressWarnings("serial")
+    class FileTask extends RecursiveAction {
+        final MappedByteBuffer chunk;
+        final long chunk_offset;
+        final int lo;
+        final int hi;
+        final boolean evaluate;
+        final ObjLongConsumer<BatchResult> sink;
+
+        FileTask(MappedByteBuffer chunk_, long chunk_offset_, int lo_, int hi_, boolean evaluate_, ObjLongConsumer<BatchResult> sink_) {
+            chunk = chunk_;
+            chunk_offset = chunk_offset_;
+            lo = lo_;
+            hi = hi_;
+            evaluate = evaluate_;
+            sink = sink_;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > FILE_GRAIN) {
+                //Split just after the first newline past the middle
+                int mid = lo + (hi - lo) / 2;
+                while (mid < hi && chunk.get(mid - 1) != '\n') {
+                    mid++;
+                }
+                if (mid < hi) {
+                    invokeAll(new FileTask(chunk, chunk_offset, lo, mid, evaluate, sink),
+                              new FileTask(chunk, chunk_offset, mid, hi, evaluate, sink));
+                    return;
+                }
+            }
+
+            BatchWorker worker = new BatchWorker();
+            int start = lo;
+            while (start < hi) {
+                int end = start;
+                while (end < hi && chunk.get(end) != '\n') {
+                    end++;
+                }
+                if (end > start) {
+                    sink.accept(worker.run(new ByteCharSequence(chunk, start, end - start), evaluate), chunk_offset + start);
+                }
+                start = end + 1;
+            }
+        }
     }
 }
@@ -1,4 +1,31 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
 public class CompilerFrontendImpl extends CompilerFrontend {
+    /*
+     * Holds the lexer shared by every CompilerFrontendImpl. The JVM builds
+     * it exactly once, on first use, and publishes it safely to all
+     * threads. The lexer is frozen, so concurrent runs can share it. The
+     * sizes of its DFAs are filled in by the same build and never change
+     * after it.
+     */
+    private static class SharedLexer {
+        static final EnumMap<TokenType, DFAImpl.Stats> determinized = new EnumMap<>(TokenType.class);
+        static final EnumMap<TokenType, DFAImpl.Stats> minimized = new EnumMap<>(TokenType.class);
+        static final LexerImpl lexer = build_lexer(determinized, minimized);
+    }
+
+    //Size of each token's DFA in the shared lexer straight after subset construction
+    static Map<TokenType, DFAImpl.Stats> determinized_stats() {
+        return Collections.unmodifiableMap(SharedLexer.determinized);
+    }
+
+    //Size of each token's DFA in the shared lexer after minimization
+    static Map<TokenType, DFAImpl.Stats> minimized_stats() {
+        return Collections.unmodifiableMap(SharedLexer.minimized);
+    }
+
     public CompilerFrontendImpl() {
         super();
     }
@@ -7,6 +34,11 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         super(debug_);
     }
 
+    @Override
+    protected Parser new_parser() {
+        return new IterativeParserImpl();
+    }
+
     /*
      * Initializes the local field "lex" to be equal to the desired lexer.
      * The desired lexer has the following specification:
@@ -18,12 +50,31 @@ public class CompilerFrontendImpl extends CompilerFrontend {
      * WHITE_SPACE (' '|\n|\r|\t)*
      *
      * (Note: The README includes LPAREN and RPAREN, which are added below)
+     *
+     * Every automaton is built as an NFA, then determinized and
+     * minimized, so the lexer steps through small flat DFA tables
+     * instead of state sets. The lexer uses maximal munch, and
+     * WHITE_SPACE is registered as a skipped token type.
+     *
+     * The lexer is only built and compiled once per JVM; every later call
+     * reuses it.
      */
     @Override
     protected void init_lexer() {
-        this.lex = new LexerImpl();
-        Automaton a;
-        char[] digits = "0123456789".toCharArray();
+        this.lex = SharedLexer.lexer;
+    }
+
+    static LexerImpl build_lexer() {
+        return build_lexer(null, null);
+    }
+
+    /*
+     * Builds a new lexer, recording the sizes of its DFAs before and after
+     * minimization in "determinized" and "minimized" unless they are null.
+     */
+    static LexerImpl build_lexer(EnumMap<TokenType, DFAImpl.Stats> determinized, EnumMap<TokenType, DFAImpl.Stats> minimized) {
+        LexerImpl lex = new LexerImpl(true);
+        AutomatonImpl a;
 
         //NUM: [0-9]*\.[0-9]+
         //This handles the "zero or more digits" before the dot
@@ -33,19 +84,15 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(2, false, true);  //Seen at least one digit after dot (accept) -> state 2 -> [0-9]+
         
         //[0-9]* loop on state 0
-        for (char d : digits) {
-            a.addTransition(0, d, 0);
-        }
+        a.addTransition(0, '0', '9', 0);
         //'\.' when we see the dot '.', we move from state 0 to state 1
         a.addTransition(0, '.', 1);
         
         //[0-9]+ from state 1
         //This handles the "one or more digits" after the dot
-        for (char d : digits) {
-            a.addTransition(1, d, 2); // 1 -> 2 (first digit after dot)
-            a.addTransition(2, d, 2); // 2 -> 2 (subsequent digits)
-        }
-        lex.add_automaton(TokenType.NUM, a);
+        a.addTransition(1, '0', '9', 2); // 1 -> 2 (first digit after dot)
+        a.addTransition(2, '0', '9', 2); // 2 -> 2 (subsequent digits)
+        add_automaton(lex, TokenType.NUM, a, false, determinized, minimized);
 
         //PLUS: \+
         //This is a simple automaton with two states for the '+' sign
@@ -53,7 +100,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, '+', 1);
-        lex.add_automaton(TokenType.PLUS, a);
+        add_automaton(lex, TokenType.PLUS, a, false, determinized, minimized);
 
         //MINUS: -
         //This is a simple automaton with two states for the '-' sign
@@ -61,7 +108,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, '-', 1);
-        lex.add_automaton(TokenType.MINUS, a);
+        add_automaton(lex, TokenType.MINUS, a, false, determinized, minimized);
 
         //TIMES: \*
         //This is a simple automaton with two states for the '*' sign
@@ -69,7 +116,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, '*', 1);
-        lex.add_automaton(TokenType.TIMES, a);
+        add_automaton(lex, TokenType.TIMES, a, false, determinized, minimized);
 
         //DIV: /
         //This is a simple automaton with two states for the '/' sign
@@ -77,7 +124,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, '/', 1);
-        lex.add_automaton(TokenType.DIV, a);
+        add_automaton(lex, TokenType.DIV, a, false, determinized, minimized);
         
         //LPAREN: \(
         //This is a simple automaton with two states for the '(' sign
@@ -85,7 +132,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, '(', 1);
-        lex.add_automaton(TokenType.LPAREN, a);
+        add_automaton(lex, TokenType.LPAREN, a, false, determinized, minimized);
 
         //RPAREN: \)
         //This is a simple automaton with two states for the ')' sign
@@ -93,7 +140,7 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         a.addState(0, true, false);
         a.addState(1, false, true);
         a.addTransition(0, ')', 1);
-        lex.add_automaton(TokenType.RPAREN, a);
+        add_automaton(lex, TokenType.RPAREN, a, false, determinized, minimized);
 
         //WHITE_SPACE (' '|\n|\r|\t)*
         //This is a simple automaton with one states for any whitespace
@@ -104,6 +151,22 @@ public class CompilerFrontendImpl extends CompilerFrontend {
         for (char w : whitespaceChars) {
             a.addTransition(0, w, 0); // Loop on state 0
         }
-        lex.add_automaton(TokenType.WHITE_SPACE, a);
+        add_automaton(lex, TokenType.WHITE_SPACE, a, true, determinized, minimized);
+
+        return lex.freeze();
+    }
+
+    //Determinizes and minimizes "a", records its sizes and registers it with the lexer
+    private static void add_automaton(LexerImpl lex, TokenType ty, AutomatonImpl a, boolean skip,
+                                      EnumMap<TokenType, DFAImpl.Stats> determinized, EnumMap<TokenType, DFAImpl.Stats> minimized) {
+        DFAImpl dfa = a.determinize();
+        DFAImpl min = dfa.minimize();
+        if (determinized != null) {
+            determinized.put(ty, dfa.stats());
+        }
+        if (minimized != null) {
+            minimized.put(ty, min.stats());
+        }
+        lex.add_automaton(ty, min, skip);
     }
 }
\ No newline at end of file
@@ -0,0 +1,389 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * A deterministic automaton compiled from an AutomatonImpl by subset
+ * construction. Transitions live in one flat int[] table indexed by
+ * state * num_classes + char class, so apply, accepts and hasTransitions
+ * are constant time and never allocate.
+ *
+ * A DFAImpl is built once and cannot be extended: addState and
+ * addTransition throw. Build the NFA with AutomatonImpl and call
+ * determinize() instead. Only current_state ever changes, so cursor()
+ * can hand each thread its own DFAImpl over the same tables.
+ */
+public class DFAImpl implements Automaton {
+    /*
+     * Size figures for one DFA, used to compare it before and after
+     * minimization.
+     */
+    static class Stats {
+        final int states;
+        final int transitions;
+        final long table_bytes;
+
+        public Stats(int states_, int transitions_, long table_bytes_) {
+            states = states_;
+            transitions = transitions_;
+            table_bytes = table_bytes_;
+        }
+
+        public String toString() {
+            return "states=" + states + " transitions=" + transitions + " table_bytes=" + table_bytes;
+        }
+    }
+
+    //Marks a missing transition, and the state the automaton is in once it has died
+    static final int DEAD = -1;
+
+    final int num_states;
+    final int num_classes;
+    final int start_state;
+    //char_class[c] is the column of char c, or DEAD if c labels no transition
+    final int[] char_class;
+    //table[s * num_classes + cls] is the next state, or DEAD
+    final int[] table;
+    final boolean[] accepting;
+
+    int current_state;
+
+    DFAImpl(int num_states_, int num_classes_, int start_state_, int[] char_class_, int[] table_, boolean[] accepting_) {
+        num_states = num_states_;
+        num_classes = num_classes_;
+        start_state = start_state_;
+        char_class = char_class_;
+        table = table_;
+        accepting = accepting_;
+        current_state = start_state;
+    }
+
+    /*
+     * Runs the subset construction over "nfa". The columns are the char
+     * classes of its NFAProgram, so chars the NFA treats alike, such as
+     * the chars of one range, share a column; chars that label no
+     * transition map straight to the dead state.
+     */
+    static DFAImpl fromNFA(AutomatonImpl nfa) {
+        nfa.prepare();
+        NFAProgram program = nfa.program;
+        int num_classes = program.num_classes;
+
+        //Each DFA state is the set of NFA states it stands for
+        HashMap<NFAProgram.Subset, Integer> ids = new HashMap<NFAProgram.Subset, Integer>();
+        ArrayList<NFAProgram.Subset> subsets = new ArrayList<NFAProgram.Subset>();
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        NFAProgram.StateSet current = new NFAProgram.StateSet(program.num_states);
+        NFAProgram.StateSet next = new NFAProgram.StateSet(program.num_states);
+
+        program.start(next);
+        int start_state = DEAD;
+        if (next.size > 0) {
+            start_state = 0;
+            NFAProgram.Subset start = NFAProgram.Subset.of(next);
+            ids.put(start, 0);
+            subsets.add(start);
+        }
+
+        //Worklist over discovered subsets; subsets.size() grows as we go
+        for (int s = 0; s < subsets.size(); s++) {
+            current.size = 0;
+            for (int state : subsets.get(s).states) {
+                current.add(state);
+            }
+            int[] row = new int[num_classes];
+            for (int cls = 0; cls < num_classes; cls++) {
+                program.step(current, cls, next);
+                if (next.size == 0) {
+                    row[cls] = DEAD;
+                } else {
+                    NFAProgram.Subset subset = NFAProgram.Subset.of(next);
+                    Integer id = ids.get(subset);
+                    if (id == null) {
+                        id = subsets.size();
+                        ids.put(subset, id);
+                        subsets.add(subset);
+                    }
+                    row[cls] = id;
+                }
+            }
+            rows.add(row);
+        }
+
+        int num_states = subsets.size();
+        int[] table = new int[num_states * num_classes];
+        boolean[] accepting = new boolean[num_states];
+        for (int s = 0; s < num_states; s++) {
+            System.arraycopy(rows.get(s), 0, table, s * num_classes, num_classes);
+            for (int state : subsets.get(s).states) {
+                if (program.isAccepting(state)) {
+                    accepting[s] = true;
+                    break;
+                }
+            }
+        }
+
+        return new DFAImpl(num_states, num_classes, start_state, program.char_class, table, accepting);
+    }
+
+    /*
+     * Returns a DFAImpl over the same tables with its own current state.
+     */
+    public DFAImpl cursor() {
+        return new DFAImpl(num_states, num_classes, start_state, char_class, table, accepting);
+    }
+
+    /*
+     * Returns the smallest DFA with the same observable behavior using
+     * Hopcroft's partition refinement. The dead state is kept in a block
+     * of its own, so states that can never accept but still have
+     * transitions are merged with each other, not with DEAD, and
+     * hasTransitions answers exactly as it did before.
+     */
+    public DFAImpl minimize() {
+        if (start_state == DEAD) {
+            return this;
+        }
+
+        //Complete the transition function with an explicit sink state
+        int n = num_states + 1;
+        int sink = num_states;
+        int[] delta = new int[n * num_classes];
+        for (int s = 0; s < n; s++) {
+            for (int cls = 0; cls < num_classes; cls++) {
+                int t = s == sink ? DEAD : table[s * num_classes + cls];
+                delta[s * num_classes + cls] = t == DEAD ? sink : t;
+            }
+        }
+
+        //Inverse transitions per class: inv_src[inv_head[cls * n + t] ...] are the states reaching t on cls
+        int[] inv_head = new int[num_classes * n + 1];
+        int[] inv_src = new int[n * num_classes];
+        for (int s = 0; s < n; s++) {
+            for (int cls = 0; cls < num_classes; cls++) {
+                inv_head[cls * n + delta[s * num_classes + cls] + 1]++;
+            }
+        }
+        for (int i = 0; i < num_classes * n; i++) {
+            inv_head[i + 1] += inv_head[i];
+        }
+        int[] fill = Arrays.copyOf(inv_head, inv_head.length);
+        for (int s = 0; s < n; s++) {
+            for (int cls = 0; cls < num_classes; cls++) {
+                inv_src[fill[cls * n + delta[s * num_classes + cls]]++] = s;
+            }
+        }
+
+        //The partition: each block is a slice [first, end) of elems; [first, mid) holds marked states
+        int[] elems = new int[n];
+        int[] loc = new int[n];
+        int[] block_of = new int[n];
+        int[] first = new int[n];
+        int[] mid = new int[n];
+        int[] end = new int[n];
+        int num_blocks = 0;
+
+        //Initial blocks: accepting, non-accepting, sink
+        int pos = 0;
+        for (int group = 0; group < 3; group++) {
+            int start = pos;
+            for (int s = 0; s < n; s++) {
+                int g = s == sink ? 2 : (accepting[s] ? 0 : 1);
+                if (g == group) {
+                    elems[pos] = s;
+                    loc[s] = pos;
+                    block_of[s] = num_blocks;
+                    pos++;
+                }
+            }
+            if (pos > start) {
+                first[num_blocks] = start;
+                mid[num_blocks] = start;
+                end[num_blocks] = pos;
+                num_blocks++;
+            }
+        }
+
+        //Worklist of (block, class) splitters
+        boolean[] in_work = new boolean[n * num_classes];
+        int[] work = new int[n * num_classes];
+        int work_size = 0;
+        for (int b = 0; b < num_blocks; b++) {
+            for (int cls = 0; cls < num_classes; cls++) {
+                in_work[b * num_classes + cls] = true;
+                work[work_size++] = b * num_classes + cls;
+            }
+        }
+
+        int[] splitter = new int[n];
+        int[] touched = new int[n];
+        while (work_size > 0) {
+            int item = work[--work_size];
+            in_work[item] = false;
+            int a = item / num_classes;
+            int cls = item % num_classes;
+
+            //Copy the splitter first, marking may reorder its slice
+            int splitter_size = end[a] - first[a];
+            System.arraycopy(elems, first[a], splitter, 0, splitter_size);
+
+            //Mark every state that reaches the splitter on cls
+            int num_touched = 0;
+            for (int i = 0; i < splitter_size; i++) {
+                int t = splitter[i];
+                for (int j = inv_head[cls * n + t]; j < inv_head[cls * n + t + 1]; j++) {
+                    int s = inv_src[j];
+                    int b = block_of[s];
+                    if (loc[s] < mid[b]) {
+                        continue;
+                    }
+                    if (mid[b] == first[b]) {
+                        touched[num_touched++] = b;
+                    }
+                    //Swap s into the marked prefix of its block
+                    int other = elems[mid[b]];
+                    elems[loc[s]] = other;
+                    loc[other] = loc[s];
+                    elems[mid[b]] = s;
+                    loc[s] = mid[b];
+                    mid[b]++;
+                }
+            }
+
+            //Split every block that was only partly marked
+            for (int i = 0; i < num_touched; i++) {
+                int b = touched[i];
+                if (mid[b] == end[b]) {
+                    mid[b] = first[b];
+                    continue;
+                }
+                int nb = num_blocks++;
+                first[nb] = first[b];
+                end[nb] = mid[b];
+                mid[nb] = first[nb];
+                first[b] = end[nb];
+                mid[b] = first[b];
+                for (int j = first[nb]; j < end[nb]; j++) {
+                    block_of[elems[j]] = nb;
+                }
+
+                for (int c = 0; c < num_classes; c++) {
+                    int smaller = (end[nb] - first[nb]) <= (end[b] - first[b]) ? nb : b;
+                    int target = in_work[b * num_classes + c] ? nb : smaller;
+                    if (!in_work[target * num_classes + c]) {
+                        in_work[target * num_classes + c] = true;
+                        work[work_size++] = target * num_classes + c;
+                    }
+                }
+            }
+        }
+
+        //Number the surviving blocks in breadth-first order from the start block
+        int[] new_id = new int[num_blocks];
+        Arrays.fill(new_id, DEAD);
+        int[] order = new int[num_blocks];
+        int num_new = 0;
+        new_id[block_of[start_state]] = num_new;
+        order[num_new++] = block_of[start_state];
+        for (int i = 0; i < num_new; i++) {
+            int rep = elems[first[order[i]]];
+            for (int c = 0; c < num_classes; c++) {
+                int b = block_of[delta[rep * num_classes + c]];
+                if (b != block_of[sink] && new_id[b] == DEAD) {
+                    new_id[b] = num_new;
+                    order[num_new++] = b;
+                }
+            }
+        }
+
+        int[] new_table = new int[num_new * num_classes];
+        boolean[] new_accepting = new boolean[num_new];
+        for (int i = 0; i < num_new; i++) {
+            int rep = elems[first[order[i]]];
+            new_accepting[i] = accepting[rep];
+            for (int c = 0; c < num_classes; c++) {
+                int b = block_of[delta[rep * num_classes + c]];
+                new_table[i * num_classes + c] = b == block_of[sink] ? DEAD : new_id[b];
+            }
+        }
+
+        //Classes that only differed in states now merged away can share a column
+        int[] merged = CharClasses.mergeColumns(new_table, num_new, num_classes);
+        return new DFAImpl(num_new, CharClasses.count(merged), 0, CharClasses.remapChars(char_class, merged),
+                CharClasses.remapTable(new_table, num_new, num_classes, merged), new_accepting);
+    }
+
+    public int stateCount() {
+        return num_states;
+    }
+
+    /*
+     * Returns the number of table entries that lead somewhere other
+     * than the dead state.
+     */
+    public int transitionCount() {
+        int count = 0;
+        for (int t : table) {
+            if (t != DEAD) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Returns the bytes held by the transition table, the char class
+     * map and the accepting flags.
+     */
+    public long tableBytes() {
+        return 4L * table.length + 4L * char_class.length + accepting.length;
+    }
+
+    public Stats stats() {
+        return new Stats(stateCount(), transitionCount(), tableBytes());
+    }
+
+    @Override
+    public void addState(int s, boolean is_start, boolean is_accept) {
+        throw new UnsupportedOperationException("DFAImpl cannot be extended; add states to the AutomatonImpl before determinize()");
+    }
+
+    @Override
+    public void addTransition(int s_initial, char label, int s_final) {
+        throw new UnsupportedOperationException("DFAImpl cannot be extended; add transitions to the AutomatonImpl before determinize()");
+    }
+
+    /*
+     * Returns the state reached from "state" on "input", or DEAD.
+     */
+    int step(int state, char input) {
+        if (state == DEAD || input >= char_class.length) {
+            return DEAD;
+        }
+        int cls = char_class[input];
+        if (cls == DEAD) {
+            return DEAD;
+        }
+        return table[state * num_classes + cls];
+    }
+
+    @Override
+    public void reset() {
+        current_state = start_state;
+    }
+
+    @Override
+    public void apply(char input) {
+        current_state = step(current_state, input);
+    }
+
+    @Override
+    public boolean accepts() {
+        return current_state != DEAD && accepting[current_state];
+    }
+
+    @Override
+    public boolean hasTransitions(char label) {
+        return step(current_state, label) != DEAD;
+    }
+}
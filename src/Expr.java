@@ -1,6 +1,12 @@
 
 abstract class Expr {  
     abstract public String toString();
+
+    /*
+     * Evaluates the expression by walking the tree, in float arithmetic.
+     * This is the reference that CompiledExpr must agree with.
+     */
+    abstract public float eval();
 }
 
 abstract class BinaryExpr extends Expr {
@@ -19,6 +25,15 @@ abstract class BinaryExpr extends Expr {
     public Expr getE2() {
         return e2;
     }
+
+    //Only for splicing re-parsed subtrees into an existing tree, see IncrementalParse
+    void setE1(Expr e) {
+        e1 = e;
+    }
+
+    void setE2(Expr e) {
+        e2 = e;
+    }
 }
 
 class PlusExpr extends BinaryExpr {
@@ -29,6 +44,10 @@ class PlusExpr extends BinaryExpr {
     public String toString() {
         return "(" + getE1().toString() + " + " + getE2().toString() + ")";
     }
+
+    public float eval() {
+        return getE1().eval() + getE2().eval();
+    }
 }
 
 class MinusExpr extends BinaryExpr {
@@ -39,6 +58,10 @@ class MinusExpr extends BinaryExpr {
     public String toString() {
         return "(" + getE1().toString() + " - " + getE2().toString() + ")";
     }
+
+    public float eval() {
+        return getE1().eval() - getE2().eval();
+    }
 }
 
 class TimesExpr extends BinaryExpr {
@@ -49,6 +72,10 @@ class TimesExpr extends BinaryExpr {
     public String toString() {
         return "(" + getE1().toString() + " * " + getE2().toString() + ")";
     }
+
+    public float eval() {
+        return getE1().eval() * getE2().eval();
+    }
 }
 
 class DivExpr extends BinaryExpr {
@@ -59,6 +86,10 @@ class DivExpr extends BinaryExpr {
     public String toString() {
         return "(" + getE1().toString() + " / " + getE2().toString() + ")";
     }
+
+    public float eval() {
+        return getE1().eval() / getE2().eval();
+    }
 }
 
 class FloatExpr extends Expr {
@@ -68,7 +99,15 @@ class FloatExpr extends Expr {
         this.literal = f;
     }
 
+    public float getLiteral() {
+        return literal;
+    }
+
     public String toString() {
         return Float.toString(literal);
     }
+
+    public float eval() {
+        return literal;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+import java.util.Arrays;
+
+/*
+ * Expression trees stored in parallel primitive arrays instead of one
+ * object per node. Node i is ops[i]; a LIT node holds literals[i], and
+ * any other node has the operands left[i] and right[i]. A node costs 13
+ * bytes in four arrays, against a 24-byte BinaryExpr or 16-byte
+ * FloatExpr plus the reference to it, and the garbage collector sees four
+ * arrays rather than millions of small objects.
+ *
+ * Nodes are only ever added after their operands, so every operand has a
+ * smaller index than its parent. eval, toString and to_expr rely on this
+ * to walk a tree of any depth in one loop, without recursion.
+ *
+ * clear() empties the arena but keeps its arrays, so one arena can take
+ * parse after parse (see ArenaParser).
+ */
+public class ExprArena {
+    static final byte LIT = 0;
+    static final byte PLUS = 1;
+    static final byte MINUS = 2;
+    static final byte TIMES = 3;
+    static final byte DIV = 4;
+
+    static final String[] OP_STRINGS = { null, " + ", " - ", " * ", " / " };
+
+    byte[] ops;
+    int[] left;
+    int[] right;
+    float[] literals;
+    int size;
+    //Node of the last complete parse, or -1
+    int root = -1;
+    //Scratch space for eval
+    float[] values = new float[0];
+
+    public ExprArena() {
+        this(16);
+    }
+
+    public ExprArena(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ops = new byte[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        literals = new float[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+        root = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int root() {
+        return root;
+    }
+
+    public int add_literal(float f) {
+        int n = grow();
+        ops[n] = LIT;
+        literals[n] = f;
+        return n;
+    }
+
+    /*
+     * Adds a node applying "op" (PLUS, MINUS, TIMES or DIV) to two nodes
+     * already in the arena.
+     */
+    public int add_binary(byte op, int e1, int e2) {
+        int n = grow();
+        ops[n] = op;
+        left[n] = e1;
+        right[n] = e2;
+        return n;
+    }
+
+    //The arena op for a PLUS, MINUS, TIMES or DIV token ordinal
+    static byte op_of(int token_type) {
+        if (token_type == TokenType.PLUS.ordinal()) {
+            return PLUS;
+        } else if (token_type == TokenType.MINUS.ordinal()) {
+            return MINUS;
+        } else if (token_type == TokenType.TIMES.ordinal()) {
+            return TIMES;
+        } else {
+            return DIV;
+        }
+    }
+
+    private int grow() {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+        }
+        return size++;
+    }
+
+    /*
+     * Evaluates "node" with the same float operations, in the same order,
+     * as Expr.eval() on the equivalent tree. Every node up to "node" is
+     * evaluated once, in index order, so operands are always ready.
+     */
+    public float eval(int node) {
+        if (values.length <= node) {
+            values = new float[Math.max(node + 1, values.length * 2)];
+        }
+        for (int i = 0; i <= node; i++) {
+            switch (ops[i]) {
+                case LIT:
+                    values[i] = literals[i];
+                    break;
+                case PLUS:
+                    values[i] = values[left[i]] + values[right[i]];
+                    break;
+                case MINUS:
+                    values[i] = values[left[i]] - values[right[i]];
+                    break;
+                case TIMES:
+                    values[i] = values[left[i]] * values[right[i]];
+                    break;
+                default:
+                    values[i] = values[left[i]] / values[right[i]];
+                    break;
+            }
+        }
+        return values[node];
+    }
+
+    public float eval() {
+        return eval(root);
+    }
+
+    /*
+     * Builds the Expr objects for "node", for code that needs the object
+     * tree. Like eval, this walks every node up to "node".
+     */
+    public Expr to_expr(int node) {
+        Expr[] built = new Expr[node + 1];
+        for (int i = 0; i <= node; i++) {
+            switch (ops[i]) {
+                case LIT:
+                    built[i] = new FloatExpr(literals[i]);
+                    break;
+                case PLUS:
+                    built[i] = new PlusExpr(built[left[i]], built[right[i]]);
+                    break;
+                case MINUS:
+                    built[i] = new MinusExpr(built[left[i]], built[right[i]]);
+                    break;
+                case TIMES:
+                    built[i] = new TimesExpr(built[left[i]], built[right[i]]);
+                    break;
+                default:
+                    built[i] = new DivExpr(built[left[i]], built[right[i]]);
+                    break;
+            }
+        }
+        return built[node];
+    }
+
+    public Expr to_expr() {
+        return to_expr(root);
+    }
+
+    /*
+     * Prints "node" exactly as Expr.toString() prints the equivalent tree.
+     */
+    public String toString(int node) {
+        StringBuilder ret = new StringBuilder();
+        //Work left to do, topmost last: a node id, or -1 - op for the text after an operand
+        int[] todo = new int[16];
+        int top = 0;
+        todo[top++] = node;
+        while (top > 0) {
+            int item = todo[--top];
+            if (item < 0) {
+                int op = -1 - item;
+                ret.append(op == LIT ? ")" : OP_STRINGS[op]);
+            } else if (ops[item] == LIT) {
+                ret.append(Float.toString(literals[item]));
+            } else {
+                if (top + 4 > todo.length) {
+                    todo = Arrays.copyOf(todo, todo.length * 2);
+                }
+                ret.append('(');
+                //LIT stands in for the closing parenthesis
+                todo[top++] = -1 - LIT;
+                todo[top++] = right[item];
+                todo[top++] = -1 - ops[item];
+                todo[top++] = left[item];
+            }
+        }
+        return ret.toString();
+    }
+
+    @Override
+    public String toString() {
+        return root == -1 ? "" : toString(root);
+    }
+}
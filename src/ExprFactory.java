@@ -0,0 +1,48 @@
+/*
+ * Makes the Expr nodes of the parsers' SDT actions. This factory makes a
+ * new node for every action; InterningExprFactory shares identical
+ * subtrees instead. Parsers call reset() at the start of every parse.
+ *
+ * ExprFactory keeps no state, so PLAIN is shared by every parser.
+ */
+public class ExprFactory {
+    public static final ExprFactory PLAIN = new ExprFactory();
+
+    public Expr literal(float f) {
+        return new FloatExpr(f);
+    }
+
+    public Expr plus(Expr e1, Expr e2) {
+        return new PlusExpr(e1, e2);
+    }
+
+    public Expr minus(Expr e1, Expr e2) {
+        return new MinusExpr(e1, e2);
+    }
+
+    public Expr times(Expr e1, Expr e2) {
+        return new TimesExpr(e1, e2);
+    }
+
+    public Expr div(Expr e1, Expr e2) {
+        return new DivExpr(e1, e2);
+    }
+
+    /*
+     * The node for "op", which must be PLUS, MINUS, TIMES or DIV.
+     */
+    public Expr binary(TokenType op, Expr e1, Expr e2) {
+        if (op == TokenType.PLUS) {
+            return plus(e1, e2);
+        } else if (op == TokenType.MINUS) {
+            return minus(e1, e2);
+        } else if (op == TokenType.TIMES) {
+            return times(e1, e2);
+        } else {
+            return div(e1, e2);
+        }
+    }
+
+    public void reset() {
+    }
+}
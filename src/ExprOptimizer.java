@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/*
+ * A pass over a parsed Expr that runs between Parser.parse and
+ * evaluation. FOLD replaces every operator whose operands are literals
+ * with the literal it evaluates to. Every leaf of this language is a
+ * literal, so a folded tree is a single FloatExpr and evaluating it again
+ * costs nothing. IDENTITIES only drops operators that cannot change the
+ * value and keeps the rest of the tree.
+ *
+ * Folding computes each operator with the same float operation, on the
+ * same operands, as Expr.eval(), so the result has the same bits as
+ * evaluating the original tree. The identities are the ones that hold for
+ * every float, including NaN, the infinities and -0.0:
+ *
+ *     x * 1.0 = 1.0 * x = x
+ *     x / 1.0 = x
+ *     x - 0.0 = x
+ *     x + -0.0 = -0.0 + x = x
+ *
+ * Some look alike but are not safe: x + 0.0 turns -0.0 into 0.0, x * 0.0
+ * is NaN for infinite x and -0.0 for negative x, and x - x and x / x are
+ * NaN for infinite x.
+ *
+ * The pass walks the tree bottom-up from an explicit stack, so it does not
+ * recurse. It handles each distinct node once, so a DAG from an
+ * InterningExprFactory stays a DAG and costs its size, not the size of
+ * the tree it stands for. Nodes are only replaced, never changed, so the
+ * input tree stays valid.
+ */
+public class ExprOptimizer {
+    public static final ExprOptimizer FOLD = new ExprOptimizer(true);
+    public static final ExprOptimizer IDENTITIES = new ExprOptimizer(false);
+
+    final boolean fold;
+
+    ExprOptimizer(boolean fold_) {
+        fold = fold_;
+    }
+
+    public Expr optimize(Expr root) {
+        //The optimized form of every node handled so far
+        IdentityHashMap<Expr, Expr> done = new IdentityHashMap<Expr, Expr>();
+        Expr[] todo = new Expr[16];
+        int top = 0;
+        todo[top++] = root;
+        while (top > 0) {
+            Expr e = todo[top - 1];
+            if (done.containsKey(e)) {
+                top--;
+                continue;
+            }
+            if (e instanceof FloatExpr) {
+                done.put(e, e);
+                top--;
+                continue;
+            }
+            BinaryExpr b = (BinaryExpr) e;
+            Expr e1 = done.get(b.getE1());
+            Expr e2 = done.get(b.getE2());
+            if (e1 == null || e2 == null) {
+                if (top + 2 > todo.length) {
+                    todo = Arrays.copyOf(todo, todo.length * 2);
+                }
+                if (e2 == null) {
+                    todo[top++] = b.getE2();
+                }
+                if (e1 == null) {
+                    todo[top++] = b.getE1();
+                }
+                continue;
+            }
+            done.put(e, simplify(b, e1, e2));
+            top--;
+        }
+        return done.get(root);
+    }
+
+    //The optimized form of "b", given the optimized forms of its operands
+    Expr simplify(BinaryExpr b, Expr e1, Expr e2) {
+        if (fold && e1 instanceof FloatExpr && e2 instanceof FloatExpr) {
+            float v1 = ((FloatExpr) e1).getLiteral();
+            float v2 = ((FloatExpr) e2).getLiteral();
+            if (b instanceof PlusExpr) {
+                return new FloatExpr(v1 + v2);
+            } else if (b instanceof MinusExpr) {
+                return new FloatExpr(v1 - v2);
+            } else if (b instanceof TimesExpr) {
+                return new FloatExpr(v1 * v2);
+            } else {
+                return new FloatExpr(v1 / v2);
+            }
+        }
+
+        if (b instanceof PlusExpr) {
+            if (is(e2, -0.0f)) {
+                return e1;
+            } else if (is(e1, -0.0f)) {
+                return e2;
+            }
+        } else if (b instanceof MinusExpr) {
+            if (is(e2, 0.0f)) {
+                return e1;
+            }
+        } else if (b instanceof TimesExpr) {
+            if (is(e2, 1.0f)) {
+                return e1;
+            } else if (is(e1, 1.0f)) {
+                return e2;
+            }
+        } else if (is(e2, 1.0f)) {
+            return e1;
+        }
+
+        if (e1 == b.getE1() && e2 == b.getE2()) {
+            return b;
+        }
+        if (b instanceof PlusExpr) {
+            return new PlusExpr(e1, e2);
+        } else if (b instanceof MinusExpr) {
+            return new MinusExpr(e1, e2);
+        } else if (b instanceof TimesExpr) {
+            return new TimesExpr(e1, e2);
+        } else {
+            return new DivExpr(e1, e2);
+        }
+    }
+
+    //Whether "e" is the literal "f", telling 0.0 and -0.0 apart
+    static boolean is(Expr e, float f) {
+        return e instanceof FloatExpr && Float.floatToRawIntBits(((FloatExpr) e).getLiteral()) == Float.floatToRawIntBits(f);
+    }
+}
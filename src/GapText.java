@@ -0,0 +1,88 @@
+/*
+ * An editable CharSequence kept in a gap buffer: the chars before the
+ * gap are at the start of "buf" and the chars after it at the end, so a
+ * replace only moves the chars between it and the previous one. Edits
+ * that stay in one place, like typing, cost the same however long the
+ * text is. subSequence and toString copy.
+ */
+class GapText implements CharSequence {
+    char[] buf;
+    int gap;
+    int gap_len;
+
+    GapText(String text) {
+        buf = new char[Math.max(16, text.length() + text.length() / 4)];
+        text.getChars(0, text.length(), buf, 0);
+        gap = text.length();
+        gap_len = buf.length - gap;
+    }
+
+    @Override
+    public int length() {
+        return buf.length - gap_len;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        return index < gap ? buf[index] : buf[index + gap_len];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = charAt(i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder ret = new StringBuilder(length());
+        ret.append(buf, 0, gap);
+        ret.append(buf, gap + gap_len, buf.length - gap - gap_len);
+        return ret.toString();
+    }
+
+    /*
+     * Replaces "deleted" chars at "offset" with "inserted". The gap is
+     * left just after the inserted chars.
+     */
+    void replace(int offset, int deleted, CharSequence inserted) {
+        if (offset < 0 || deleted < 0 || offset + deleted > length()) {
+            throw new IndexOutOfBoundsException("Edit of " + deleted + " chars at " + offset + " in a text of length " + length());
+        }
+        move_gap(offset + deleted);
+        gap = offset;
+        gap_len += deleted;
+        int count = inserted.length();
+        if (count > gap_len) {
+            int after = buf.length - gap - gap_len;
+            char[] grown = new char[Math.max(buf.length * 2, gap + count + after + 16)];
+            System.arraycopy(buf, 0, grown, 0, gap);
+            System.arraycopy(buf, buf.length - after, grown, grown.length - after, after);
+            buf = grown;
+            gap_len = grown.length - gap - after;
+        }
+        for (int i = 0; i < count; i++) {
+            buf[gap + i] = inserted.charAt(i);
+        }
+        gap += count;
+        gap_len -= count;
+    }
+
+    void move_gap(int pos) {
+        if (pos < gap) {
+            System.arraycopy(buf, pos, buf, pos + gap_len, gap - pos);
+        } else if (pos > gap) {
+            System.arraycopy(buf, gap + gap_len, buf, gap, pos - gap);
+        }
+        gap = pos;
+    }
+}
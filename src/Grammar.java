@@ -0,0 +1,310 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * A context-free grammar over TokenType terminals, compiled into an LL(1)
+ * predict table.
+ *
+ * The grammar is given one production per line, in the notation of the
+ * doc comment in Parser:
+ *
+ *     T -> F AddOp T   #binary
+ *     T -> F
+ *
+ * Upper-case names of TokenType values are terminals, every name that
+ * appears on a left-hand side is a nonterminal, and an optional "#name"
+ * at the end names the production's SDT action. Productions sharing a
+ * prefix are left-factored before FIRST, FOLLOW and the predict table
+ * are computed, so the grammar can be written as in Parser. Factoring
+ * does not change which action runs or how many values it sees: the
+ * action of an original production runs at the end of its last factored
+ * piece, over the values of all of its symbols.
+ */
+class Grammar {
+    static final TokenType[] TYPES = TokenType.values();
+    //Terminal ids are TokenType ordinals, followed by end of input
+    static final int EOF = TYPES.length;
+    static final int NUM_TERMINALS = TYPES.length + 1;
+
+    ArrayList<String> names = new ArrayList<String>();
+    HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    //Factored productions: lhs, rhs, and the original production they complete (or -1)
+    ArrayList<Integer> lhs = new ArrayList<Integer>();
+    ArrayList<int[]> rhs = new ArrayList<int[]>();
+    ArrayList<Integer> completes = new ArrayList<Integer>();
+
+    //Original productions: number of symbols and action name (null for $$ = $1)
+    ArrayList<Integer> orig_length = new ArrayList<Integer>();
+    ArrayList<String> orig_action = new ArrayList<String>();
+
+    int start;
+    boolean[] nullable;
+    boolean[][] first;
+    boolean[][] follow;
+    //predict[(nt - NUM_TERMINALS) * NUM_TERMINALS + t] is the production to expand, or -1
+    int[] predict;
+
+    public Grammar(String spec) {
+        for (int t = 0; t < TYPES.length; t++) {
+            symbol(TYPES[t].name());
+        }
+        symbol("$");
+
+        //First pass: every left-hand side is a nonterminal
+        String[] lines = spec.split("\n");
+        for (String line : lines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2 || parts[0].isEmpty()) {
+                continue;
+            }
+            if (!parts[1].equals("->")) {
+                throw new IllegalArgumentException("Malformed production: " + line);
+            }
+            symbol(parts[0]);
+        }
+
+        start = -1;
+        for (String line : lines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2 || parts[0].isEmpty()) {
+                continue;
+            }
+            ArrayList<Integer> body = new ArrayList<Integer>();
+            String action = null;
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith("#")) {
+                    action = parts[i].substring(1);
+                } else if (ids.containsKey(parts[i])) {
+                    body.add(ids.get(parts[i]));
+                } else {
+                    throw new IllegalArgumentException("Unknown symbol " + parts[i] + " in: " + line);
+                }
+            }
+            int head = ids.get(parts[0]);
+            if (start == -1) {
+                start = head;
+            }
+            int[] body_ids = new int[body.size()];
+            for (int i = 0; i < body_ids.length; i++) {
+                body_ids[i] = body.get(i);
+            }
+            add_production(head, body_ids, orig_length.size());
+            orig_length.add(body_ids.length);
+            orig_action.add(action);
+        }
+        if (start == -1) {
+            throw new IllegalArgumentException("Grammar has no productions");
+        }
+
+        left_factor();
+        compute_first_follow();
+        compute_predict();
+    }
+
+    int symbol(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    boolean is_terminal(int sym) {
+        return sym < NUM_TERMINALS;
+    }
+
+    int num_symbols() {
+        return names.size();
+    }
+
+    void add_production(int head, int[] body, int orig) {
+        lhs.add(head);
+        rhs.add(body);
+        completes.add(orig);
+    }
+
+    /*
+     * Repeatedly pulls the longest common prefix out of any group of
+     * productions for the same nonterminal that start with the same symbol.
+     */
+    void left_factor() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = 0; p < lhs.size() && !changed; p++) {
+                if (rhs.get(p).length == 0) {
+                    continue;
+                }
+                ArrayList<Integer> group = new ArrayList<Integer>();
+                for (int q = 0; q < lhs.size(); q++) {
+                    if (lhs.get(q).equals(lhs.get(p)) && rhs.get(q).length > 0 && rhs.get(q)[0] == rhs.get(p)[0]) {
+                        group.add(q);
+                    }
+                }
+                if (group.size() < 2) {
+                    continue;
+                }
+
+                int prefix = rhs.get(p).length;
+                for (int q : group) {
+                    int[] body = rhs.get(q);
+                    int k = 0;
+                    while (k < prefix && k < body.length && body[k] == rhs.get(p)[k]) {
+                        k++;
+                    }
+                    prefix = k;
+                }
+
+                //A -> prefix A' ; A' -> rest of each production in the group
+                int head = lhs.get(p);
+                String name = names.get(head) + "'";
+                while (ids.containsKey(name)) {
+                    name = name + "'";
+                }
+                int tail = symbol(name);
+                int[] prefix_body = Arrays.copyOf(rhs.get(p), prefix + 1);
+                prefix_body[prefix] = tail;
+
+                ArrayList<int[]> new_rhs = new ArrayList<int[]>();
+                ArrayList<Integer> new_lhs = new ArrayList<Integer>();
+                ArrayList<Integer> new_completes = new ArrayList<Integer>();
+                for (int q = 0; q < lhs.size(); q++) {
+                    if (!group.contains(q)) {
+                        new_lhs.add(lhs.get(q));
+                        new_rhs.add(rhs.get(q));
+                        new_completes.add(completes.get(q));
+                    } else if (q == group.get(0)) {
+                        new_lhs.add(head);
+                        new_rhs.add(prefix_body);
+                        new_completes.add(-1);
+                    }
+                }
+                for (int q : group) {
+                    int[] body = rhs.get(q);
+                    new_lhs.add(tail);
+                    new_rhs.add(Arrays.copyOfRange(body, prefix, body.length));
+                    new_completes.add(completes.get(q));
+                }
+                lhs = new_lhs;
+                rhs = new_rhs;
+                completes = new_completes;
+                changed = true;
+            }
+        }
+    }
+
+    void compute_first_follow() {
+        int n = num_symbols();
+        nullable = new boolean[n];
+        first = new boolean[n][NUM_TERMINALS];
+        follow = new boolean[n][NUM_TERMINALS];
+        for (int t = 0; t < NUM_TERMINALS; t++) {
+            first[t][t] = true;
+        }
+        follow[start][EOF] = true;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = 0; p < lhs.size(); p++) {
+                int head = lhs.get(p);
+                int[] body = rhs.get(p);
+
+                //FIRST(head) includes FIRST of each body symbol up to the first non-nullable one
+                boolean all_nullable = true;
+                for (int sym : body) {
+                    changed |= union(first[head], first[sym]);
+                    if (!nullable[sym]) {
+                        all_nullable = false;
+                        break;
+                    }
+                }
+                if (all_nullable && !nullable[head]) {
+                    nullable[head] = true;
+                    changed = true;
+                }
+
+                //FOLLOW(sym) includes FIRST of what comes after it, and FOLLOW(head) if that is nullable
+                boolean[] trailer = follow[head].clone();
+                for (int i = body.length - 1; i >= 0; i--) {
+                    int sym = body[i];
+                    if (!is_terminal(sym)) {
+                        changed |= union(follow[sym], trailer);
+                    }
+                    if (nullable[sym]) {
+                        union(trailer, first[sym]);
+                    } else {
+                        trailer = first[sym].clone();
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean union(boolean[] into, boolean[] from) {
+        boolean changed = false;
+        for (int i = 0; i < into.length; i++) {
+            if (from[i] && !into[i]) {
+                into[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    void compute_predict() {
+        int num_nonterminals = num_symbols() - NUM_TERMINALS;
+        predict = new int[num_nonterminals * NUM_TERMINALS];
+        Arrays.fill(predict, -1);
+
+        for (int p = 0; p < lhs.size(); p++) {
+            int head = lhs.get(p);
+            boolean[] lookahead = new boolean[NUM_TERMINALS];
+            boolean body_nullable = true;
+            for (int sym : rhs.get(p)) {
+                union(lookahead, first[sym]);
+                if (!nullable[sym]) {
+                    body_nullable = false;
+                    break;
+                }
+            }
+            if (body_nullable) {
+                union(lookahead, follow[head]);
+            }
+
+            for (int t = 0; t < NUM_TERMINALS; t++) {
+                if (!lookahead[t]) {
+                    continue;
+                }
+                int cell = (head - NUM_TERMINALS) * NUM_TERMINALS + t;
+                if (predict[cell] != -1 && predict[cell] != p) {
+                    throw new IllegalArgumentException("Grammar is not LL(1): " + names.get(head) + " has two productions for " + names.get(t));
+                }
+                predict[cell] = p;
+            }
+        }
+    }
+
+    /*
+     * Returns the factored grammar, one production per line.
+     */
+    public String toString() {
+        StringBuilder ret = new StringBuilder();
+        for (int p = 0; p < lhs.size(); p++) {
+            ret.append(names.get(lhs.get(p))).append(" ->");
+            for (int sym : rhs.get(p)) {
+                ret.append(" ").append(names.get(sym));
+            }
+            int orig = completes.get(p);
+            if (orig != -1 && orig_action.get(orig) != null) {
+                ret.append(" #").append(orig_action.get(orig));
+            }
+            ret.append("\n");
+        }
+        return ret.toString();
+    }
+}
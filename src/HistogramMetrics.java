@@ -0,0 +1,152 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A MetricsListener that keeps everything in memory: for each phase a
+ * histogram of durations with one bucket per power of two nanoseconds,
+ * plus running totals of tokens per type, automaton steps, backtracks,
+ * cache hits and misses and allocated bytes. Updates are lock-free, and toString renders a
+ * snapshot as "name value" lines for scraping.
+ */
+public class HistogramMetrics implements MetricsListener {
+    static final Phase[] PHASES = Phase.values();
+    static final TokenType[] TYPES = TokenType.values();
+    //Bucket b holds durations in [2^(b-1), 2^b) ns; bucket 0 holds 0
+    static final int NUM_BUCKETS = 64;
+
+    final AtomicLongArray buckets = new AtomicLongArray(PHASES.length * NUM_BUCKETS);
+    final LongAdder[] count = new LongAdder[PHASES.length];
+    final LongAdder[] total_nanos = new LongAdder[PHASES.length];
+    final AtomicLongArray max_nanos = new AtomicLongArray(PHASES.length);
+    final LongAdder[] tokens = new LongAdder[TYPES.length];
+    final LongAdder steps = new LongAdder();
+    final LongAdder backtracks = new LongAdder();
+    final LongAdder cache_hits = new LongAdder();
+    final LongAdder cache_misses = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+
+    public HistogramMetrics() {
+        for (int p = 0; p < PHASES.length; p++) {
+            count[p] = new LongAdder();
+            total_nanos[p] = new LongAdder();
+        }
+        for (int t = 0; t < TYPES.length; t++) {
+            tokens[t] = new LongAdder();
+        }
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        int p = phase.ordinal();
+        buckets.incrementAndGet(p * NUM_BUCKETS + bucket(nanos));
+        count[p].increment();
+        total_nanos[p].add(nanos);
+        long max = max_nanos.get(p);
+        while (nanos > max && !max_nanos.compareAndSet(p, max, nanos)) {
+            max = max_nanos.get(p);
+        }
+    }
+
+    @Override
+    public void tokens(TokenType ty, int n) {
+        tokens[ty.ordinal()].add(n);
+    }
+
+    @Override
+    public void automaton_steps(long n, long backtracked) {
+        steps.add(n);
+        backtracks.add(backtracked);
+    }
+
+    @Override
+    public void cache_lookup(boolean hit) {
+        (hit ? cache_hits : cache_misses).increment();
+    }
+
+    @Override
+    public void bytes_allocated(long n) {
+        bytes.add(n);
+    }
+
+    public long count(Phase phase) {
+        return count[phase.ordinal()].sum();
+    }
+
+    public long total_nanos(Phase phase) {
+        return total_nanos[phase.ordinal()].sum();
+    }
+
+    public long max_nanos(Phase phase) {
+        return max_nanos.get(phase.ordinal());
+    }
+
+    /*
+     * An upper bound on the "q" quantile (0 < q <= 1) of the durations
+     * of "phase": the top of the bucket it falls in, so at most twice the
+     * true value. Returns 0 if the phase was never reported.
+     */
+    public long quantile_nanos(Phase phase, double q) {
+        long n = count(phase);
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            seen += buckets.get(phase.ordinal() * NUM_BUCKETS + b);
+            if (seen >= rank) {
+                return b == 0 ? 0 : Math.min(1L << b, max_nanos(phase));
+            }
+        }
+        return max_nanos(phase);
+    }
+
+    public long tokens(TokenType ty) {
+        return tokens[ty.ordinal()].sum();
+    }
+
+    public long steps() {
+        return steps.sum();
+    }
+
+    public long backtracks() {
+        return backtracks.sum();
+    }
+
+    public long cache_hits() {
+        return cache_hits.sum();
+    }
+
+    public long cache_misses() {
+        return cache_misses.sum();
+    }
+
+    public long bytes_allocated() {
+        return bytes.sum();
+    }
+
+    public String toString() {
+        StringBuilder ret = new StringBuilder();
+        for (Phase phase : PHASES) {
+            String name = "phase." + phase.name().toLowerCase();
+            ret.append(name).append(".count ").append(count(phase)).append("\n");
+            ret.append(name).append(".total_ns ").append(total_nanos(phase)).append("\n");
+            ret.append(name).append(".p50_ns ").append(quantile_nanos(phase, 0.5)).append("\n");
+            ret.append(name).append(".p99_ns ").append(quantile_nanos(phase, 0.99)).append("\n");
+            ret.append(name).append(".max_ns ").append(max_nanos(phase)).append("\n");
+        }
+        for (TokenType ty : TYPES) {
+            ret.append("tokens.").append(ty.name().toLowerCase()).append(" ").append(tokens(ty)).append("\n");
+        }
+        ret.append("automaton.steps ").append(steps()).append("\n");
+        ret.append("automaton.backtracks ").append(backtracks()).append("\n");
+        ret.append("cache.hits ").append(cache_hits()).append("\n");
+        ret.append("cache.misses ").append(cache_misses()).append("\n");
+        ret.append("bytes_allocated ").append(bytes_allocated()).append("\n");
+        return ret.toString();
+    }
+}
@@ -0,0 +1,932 @@
+import java.util.Arrays;
+
+/*
+ * The token stream and Expr tree of one input, kept up to date as the
+ * input is edited. An edit replaces "deleted" chars at "offset" with
+ * "inserted", like one keystroke or paste in an editor, and only redoes
+ * the work the edit can have changed:
+ *
+ * Re-lexing starts one token before the first token the edit touched
+ * (no token of this lexer looks further ahead than the next token) and
+ * stops at the first new token boundary past the edit that was also an
+ * old token boundary. From there on the text is unchanged, so the old
+ * tokens are reused as they are.
+ *
+ * Re-parsing works on the smallest run of operands around the change. A
+ * NUM whose text changed just gets a new FloatExpr. Otherwise, if the
+ * change holds no AddOp outside parentheses, the operands of the product
+ * it is in are parsed again from the MulOp before the change to the MulOp
+ * after it, and else the operands of the sum it is in, from AddOp to
+ * AddOp. A product or sum ends at an AddOp, an enclosing parenthesis or
+ * the end of the input. Since both operators are right associative, the
+ * part of a product or sum from any operand on is one subtree, so the
+ * re-parsed run takes the place of the old one in that subtree, and the
+ * node of the operator after the run gets its new last operand. Nothing
+ * else in the tree changes. Edits of only whitespace do not re-parse at
+ * all. When the edit breaks the nesting of the parentheses around it, or
+ * the run does not parse, the whole input is parsed again, and so are
+ * the edits after a failed one.
+ *
+ * For that, every token but whitespace and RPAREN remembers the Expr it
+ * produced (the Lit of a NUM or LPAREN, the BinaryExpr of an operator) and
+ * the BinaryExpr that holds it, if any. The scans for the ends of a run
+ * step over whole groups through an index of matching parentheses. The
+ * Expr returned by earlier calls is updated in place, and error messages
+ * are the same as those of CompilerFrontend.run on the whole input.
+ *
+ * The text (see GapText), the tokens with what they produced, and the
+ * parenthesis index are each kept in a gap buffer whose gap follows the
+ * edits. Behind the gap, offsets are stored relative to the end of the
+ * text and indices relative to the number of entries, so a change of
+ * length moves nothing past the edit. An edit costs the tokens it
+ * re-scans and re-parses plus the chars and tokens between it and the
+ * previous edit, which the gaps move over, so typing at one place in a
+ * long flat sum costs about as much as the operands next to the cursor
+ * however long the sum is. The first edit after a full scan moves the
+ * gaps from the end of the input.
+ */
+public class IncrementalParse {
+    static final int NUM = TokenType.NUM.ordinal();
+    static final int LPAREN = TokenType.LPAREN.ordinal();
+    static final int RPAREN = TokenType.RPAREN.ordinal();
+    static final int WHITE_SPACE = TokenType.WHITE_SPACE.ordinal();
+    //Stored partner of a parenthesis without a match
+    static final int UNMATCHED = Integer.MIN_VALUE;
+
+    final Lexer lex;
+    //Set if lex can re-scan single tokens; otherwise every edit scans the whole input
+    final LexerImpl relexer;
+    final TrackingParser parser = new TrackingParser();
+
+    final GapText input;
+    //False after a lexing error, until an edit scans the whole input again
+    boolean lexed;
+    Expr root;
+    //The error of the last edit, if root is null
+    Exception error;
+
+    /*
+     * All tokens of input including whitespace, in a gap buffer: token i
+     * is at index at(i) of every array below, and the gap starts at index
+     * "gap". Tokens behind the gap store their offsets minus
+     * tokens_length, the input length when tokens were last spliced.
+     */
+    byte[] types;
+    int[] starts;
+    int[] ends;
+    //For token i other than whitespace and RPAREN: the Expr it produced, and the BinaryExpr it is an operand of
+    Expr[] node;
+    BinaryExpr[] parent;
+    //True if the node of a token is the right operand of its parent
+    boolean[] right;
+    int size;
+    int gap;
+    int gap_len;
+    int tokens_length;
+
+    /*
+     * Token indices of the parentheses in order, and for each the index
+     * of its match, in a gap buffer that holds the parentheses of the
+     * tokens before the token gap in front of its own gap. Token indices
+     * behind the gap are stored minus size, and the index of a partner
+     * behind the gap is stored minus num_parens, or UNMATCHED.
+     */
+    int[] parens = new int[16];
+    int[] partner = new int[16];
+    int num_parens;
+    int paren_gap;
+    int paren_gap_len = 16;
+
+    //Tokens scanned and parsed by the last edit
+    int relexed;
+    int reparsed;
+
+    IncrementalParse(Lexer lex_, String input_) {
+        lex = lex_;
+        LexerImpl impl = lex_ instanceof LexerImpl ? (LexerImpl) lex_ : null;
+        if (impl != null && impl.compiled == null) {
+            impl.compile();
+        }
+        relexer = impl != null && impl.compiled != null ? impl : null;
+        input = new GapText(input_);
+        try {
+            rescan_all();
+        } catch (Exception e) {
+            //Kept for getExpr; the first edit starts over
+        }
+    }
+
+    //Copies out the current input
+    public String getInput() {
+        return input.toString();
+    }
+
+    /*
+     * A copy of the tokens of the current input, whitespace included, or
+     * null after a lexing error.
+     */
+    public TokenStream getTokens() {
+        if (!lexed) {
+            return null;
+        }
+        TokenStream ret = new TokenStream(input.toString(), size);
+        for (int i = 0; i < size; i++) {
+            ret.add(type(i), start(i), end(i));
+        }
+        return ret;
+    }
+
+    /*
+     * Returns the tree of the current input, or throws the error that
+     * lexing or parsing it raised.
+     */
+    public Expr getExpr() throws Exception {
+        if (root == null) {
+            throw error;
+        }
+        return root;
+    }
+
+    /*
+     * Replaces "deleted" chars at "offset" with "inserted" and returns the
+     * tree of the new input. Throws the error of the new input, if any;
+     * the edit is applied either way, so editing can go on from there.
+     */
+    public Expr edit(int offset, int deleted, String inserted) throws Exception {
+        if (offset < 0 || deleted < 0 || offset + deleted > input.length()) {
+            throw new IndexOutOfBoundsException("Edit of " + deleted + " chars at " + offset + " in an input of length " + input.length());
+        }
+        relexed = 0;
+        reparsed = 0;
+        if (!lexed || relexer == null) {
+            input.replace(offset, deleted, inserted);
+            return rescan_all();
+        }
+
+        //Until the splice, start() and end() give offsets in the old input
+        int n = size;
+        int shift = inserted.length() - deleted;
+        int edit_end = offset + inserted.length();
+
+        //Re-scan from one token before the first token whose scan read the char at offset
+        int a = Math.max(0, first_end_at_least(offset) - 1);
+        int pos = a < n ? start(a) : 0;
+        //Old tokens from j on start in unchanged text and may be reused
+        int j = first_start_at_least(offset + deleted);
+        input.replace(offset, deleted, inserted);
+        TokenStream mid = new TokenStream(input);
+        try {
+            while (pos < input.length()) {
+                if (pos >= edit_end) {
+                    while (j < n && start(j) + shift < pos) {
+                        j++;
+                    }
+                    if (j < n && start(j) + shift == pos) {
+                        break;
+                    }
+                }
+                pos = relexer.scan_one(input, pos, mid);
+            }
+        } catch (RuntimeException e) {
+            lexed = false;
+            return fail(e);
+        }
+        if (pos >= input.length()) {
+            j = n;
+        }
+        relexed = mid.size;
+
+        //Drop the re-scanned tokens that came out the same
+        int k = 0;
+        int m = mid.size;
+        while (k < m && a < j && mid.types[k] == type(a) && mid.starts[k] == start(a)
+                && mid.ends[k] == end(a) && end(a) <= offset) {
+            k++;
+            a++;
+        }
+        while (m > k && j > a && mid.types[m - 1] == type(j - 1) && start(j - 1) >= offset + deleted
+                && mid.starts[m - 1] == start(j - 1) + shift && mid.ends[m - 1] == end(j - 1) + shift) {
+            m--;
+            j--;
+        }
+
+        //Old tokens [a, j) became new tokens [a, b)
+        int b = a + m - k;
+        TokenStream old = copy_tokens(a, j);
+        int old_lit = only_token(old, 0, old.size);
+        int old_type = old_lit >= 0 ? old.types[old_lit] : -1;
+        Expr lit_node = old_lit >= 0 ? node[at(a + old_lit)] : null;
+        BinaryExpr lit_parent = old_lit >= 0 ? parent[at(a + old_lit)] : null;
+        boolean lit_right = old_lit >= 0 && right[at(a + old_lit)];
+        int mid_lit = only_token(mid, k, m);
+        boolean same_tree = old_lit == -1 && mid_lit == -1;
+        boolean same_shape = old_type == NUM && mid_lit >= 0 && mid.types[mid_lit] == NUM;
+        boolean nested = balanced(old, 0, old.size) && balanced(mid, k, m);
+        //Found before the splice, which loses what the old tokens of the run produced
+        Run run = null;
+        if (root != null && nested && !same_tree && !same_shape) {
+            run = run_around(a, j, !has_add_op(old, 0, old.size) && !has_add_op(mid, k, m));
+        }
+        splice(a, j, mid, k, m);
+
+        if (root == null || !nested) {
+            return reparse_all();
+        }
+
+        if (same_tree) {
+            //Only whitespace changed
+            return root;
+        }
+        if (same_shape) {
+            int new_lit = at(a + mid_lit - k);
+            node[new_lit] = lit_node;
+            parent[new_lit] = lit_parent;
+            right[new_lit] = lit_right;
+            replace(a + mid_lit - k, new FloatExpr(mid.number(mid_lit)));
+            reparsed = 1;
+            return root;
+        }
+        try {
+            return reparse_run(run, b - j);
+        } catch (Exception e) {
+            //Parse everything again, so the error is the one a full parse reports
+            return reparse_all();
+        }
+    }
+
+    /*
+     * The operands of one product (or sum) around a change, as token
+     * range [from, to) of the old tokens, and where the subtree of the
+     * product from "from" on hangs.
+     */
+    static class Run {
+        boolean product;
+        int from;
+        int to;
+        //The operator before "from" and the one at "to" that belong to this product, or -1
+        int prev_op;
+        int next_op;
+        //Holds the subtree from "from" on, or null if it is all of the group opened at "open", or the whole input if open is -1
+        BinaryExpr slot;
+        boolean slot_right;
+        int open;
+    }
+
+    //The run around old tokens [a, j), of a product if "product" and else of a sum
+    Run run_around(int a, int j, boolean product) {
+        Run run = new Run();
+        run.product = product;
+        int stop = scan_back(a, product);
+        run.from = stop + 1;
+        run.prev_op = stop >= 0 && separates(type(stop), product) ? stop : -1;
+        run.open = stop == -1 || type(stop) == LPAREN ? stop : -1;
+        run.to = scan_forward(j, product);
+        run.next_op = run.to < size && separates(type(run.to), product) ? run.to : -1;
+        //The root of the subtree from "from" on is the first operator of this product, or its only operand
+        int top = first_op(run.from, run.to, product);
+        if (top == -1) {
+            top = run.next_op != -1 ? run.next_op : root_token(run.from, run.to);
+        }
+        run.slot = parent[at(top)];
+        run.slot_right = right[at(top)];
+        return run;
+    }
+
+    /*
+     * Parses the operands of "run", now ending "shift" tokens later, and
+     * puts them in place of the old ones. The node of the operator after
+     * the run keeps the rest of the product as its right operand.
+     */
+    Expr reparse_run(Run run, int shift) throws Exception {
+        int to = run.to + shift;
+        int next = run.next_op == -1 ? -1 : run.next_op + shift;
+        Expr sub = reparse(run.from, to);
+        int top = root_token(run.from, to);
+        if (next != -1) {
+            BinaryExpr rest = (BinaryExpr) node[at(next)];
+            int last = last_op(run.from, to, run.product);
+            if (last == -1) {
+                rest.setE1(sub);
+                parent[at(top)] = rest;
+                right[at(top)] = false;
+                sub = rest;
+                top = next;
+            } else {
+                BinaryExpr before = (BinaryExpr) node[at(last)];
+                int operand = root_token(last + 1, to);
+                rest.setE1(before.getE2());
+                parent[at(operand)] = rest;
+                right[at(operand)] = false;
+                before.setE2(rest);
+                parent[at(next)] = before;
+                right[at(next)] = true;
+            }
+        }
+        parent[at(top)] = run.slot;
+        right[at(top)] = run.slot_right;
+        if (run.slot == null) {
+            if (run.open == -1) {
+                root = sub;
+            } else {
+                replace(run.open, sub);
+            }
+        } else if (run.slot_right) {
+            run.slot.setE2(sub);
+        } else {
+            run.slot.setE1(sub);
+        }
+        return root;
+    }
+
+    /*
+     * Scans and parses the whole input.
+     */
+    Expr rescan_all() throws Exception {
+        TokenStream all;
+        try {
+            all = lex.scan_stream(input, true);
+        } catch (RuntimeException e) {
+            lexed = false;
+            return fail(e);
+        }
+        lexed = true;
+        relexed = all.size;
+        int capacity = Math.max(16, all.size + all.size / 4);
+        types = Arrays.copyOf(all.types, capacity);
+        starts = Arrays.copyOf(all.starts, capacity);
+        ends = Arrays.copyOf(all.ends, capacity);
+        node = new Expr[capacity];
+        parent = new BinaryExpr[capacity];
+        right = new boolean[capacity];
+        size = all.size;
+        gap = size;
+        gap_len = capacity - size;
+        tokens_length = input.length();
+        return reparse_all();
+    }
+
+    Expr reparse_all() throws Exception {
+        Arrays.fill(node, null);
+        Arrays.fill(parent, null);
+        index_parens();
+        try {
+            root = reparse(0, size);
+            error = null;
+            return root;
+        } catch (Exception e) {
+            return fail(e);
+        }
+    }
+
+    Expr fail(Exception e) throws Exception {
+        root = null;
+        error = e;
+        throw e;
+    }
+
+    /*
+     * Parses the non-whitespace tokens in [from, to) as a T, recording
+     * the Expr and parent of every Lit on the way.
+     */
+    Expr reparse(int from, int to) throws Exception {
+        TokenStream sub = new TokenStream(input, to - from);
+        int[] full = new int[Math.max(1, to - from)];
+        for (int i = from; i < to; i++) {
+            if (type(i) != WHITE_SPACE) {
+                full[sub.size] = i;
+                sub.add(type(i), start(i), end(i));
+            }
+        }
+        reparsed += sub.size;
+        parser.full = full;
+        return parser.parse(sub);
+    }
+
+    /*
+     * Puts "e" in place of the Lit at token u. A Lit without a parent is
+     * the whole inside of its enclosing group, or the whole input, so the
+     * group takes its place too.
+     */
+    void replace(int u, Expr e) {
+        while (true) {
+            int p = at(u);
+            node[p] = e;
+            if (parent[p] != null) {
+                if (right[p]) {
+                    parent[p].setE2(e);
+                } else {
+                    parent[p].setE1(e);
+                }
+                return;
+            }
+            int open = previous_token(u);
+            if (open == -1) {
+                root = e;
+                return;
+            }
+            u = open;
+        }
+    }
+
+    int previous_token(int i) {
+        for (i--; i >= 0; i--) {
+            if (type(i) != WHITE_SPACE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean is_add_op(int ty) {
+        return ty == TokenType.PLUS.ordinal() || ty == TokenType.MINUS.ordinal();
+    }
+
+    //True if "ty" separates the operands of a product, or of a sum if "product" is false
+    static boolean separates(int ty, boolean product) {
+        return product ? IterativeParserImpl.is_mul_op(ty) : is_add_op(ty);
+    }
+
+    /*
+     * Going left from token i, skipping whole groups: the first operator
+     * that separates operands of this product (or sum), the AddOp that
+     * ends this product, the LPAREN of the enclosing group, or -1.
+     */
+    int scan_back(int i, boolean product) {
+        for (i--; i >= 0; i--) {
+            int ty = type(i);
+            if (ty == RPAREN) {
+                i = match(i);
+            } else if (ty == LPAREN || separates(ty, product) || is_add_op(ty)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Going right from token i, skipping whole groups: the first operator
+     * that separates operands of this product (or sum), the AddOp that
+     * ends this product, the RPAREN of the enclosing group, or the end.
+     */
+    int scan_forward(int i, boolean product) {
+        for (; i < size; i++) {
+            int ty = type(i);
+            if (ty == LPAREN) {
+                i = match(i);
+            } else if (ty == RPAREN || separates(ty, product) || is_add_op(ty)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    //The first operator outside groups in tokens [from, to) that separates operands of a product (or sum), or -1
+    int first_op(int from, int to, boolean product) {
+        for (int i = from; i < to; i++) {
+            int ty = type(i);
+            if (ty == LPAREN) {
+                i = match(i);
+            } else if (separates(ty, product)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //The last operator outside groups in tokens [from, to) that separates operands of a product (or sum), or -1
+    int last_op(int from, int to, boolean product) {
+        for (int i = to - 1; i >= from; i--) {
+            int ty = type(i);
+            if (ty == RPAREN) {
+                i = match(i);
+            } else if (separates(ty, product)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The token whose node is the root of the T in tokens [from, to): its
+     * first AddOp outside groups, else its first MulOp, else its Lit.
+     */
+    int root_token(int from, int to) {
+        int add = first_op(from, to, false);
+        if (add != -1) {
+            return add;
+        }
+        int mul = first_op(from, to, true);
+        if (mul != -1) {
+            return mul;
+        }
+        int ret = from;
+        while (type(ret) == WHITE_SPACE) {
+            ret++;
+        }
+        return ret;
+    }
+
+    //True if tokens [from, to) of "s" hold an AddOp outside parentheses
+    static boolean has_add_op(TokenStream s, int from, int to) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            if (s.types[i] == LPAREN) {
+                depth++;
+            } else if (s.types[i] == RPAREN) {
+                depth--;
+            } else if (depth == 0 && is_add_op(s.types[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //The index in the token arrays of token i
+    int at(int i) {
+        return i < gap ? i : i + gap_len;
+    }
+
+    int type(int i) {
+        return types[at(i)];
+    }
+
+    //The offset of token i in the input it was last spliced into
+    int start(int i) {
+        return i < gap ? starts[i] : starts[i + gap_len] + tokens_length;
+    }
+
+    int end(int i) {
+        return i < gap ? ends[i] : ends[i + gap_len] + tokens_length;
+    }
+
+    //Tokens [from, to) as a stream of their own, indexed from 0
+    TokenStream copy_tokens(int from, int to) {
+        TokenStream ret = new TokenStream(input, to - from);
+        for (int i = from; i < to; i++) {
+            ret.add(type(i), start(i), end(i));
+        }
+        return ret;
+    }
+
+    /*
+     * Replaces tokens [from, to) with tokens [mid_from, mid_to) of "mid",
+     * whose offsets are in the edited input, and moves the tokens after
+     * them to that input. The parentheses of the new tokens are matched
+     * among themselves, which keeps the index right if both ranges are
+     * balanced; otherwise it has to be rebuilt.
+     */
+    void splice(int from, int to, TokenStream mid, int mid_from, int mid_to) {
+        move_gap(to);
+        Arrays.fill(node, from, to, null);
+        Arrays.fill(parent, from, to, null);
+        gap_len += to - from;
+        size -= to - from;
+        gap = from;
+        while (paren_gap > 0 && parens[paren_gap - 1] >= from) {
+            paren_gap--;
+            paren_gap_len++;
+            num_parens--;
+        }
+
+        int count = mid_to - mid_from;
+        if (count > gap_len) {
+            grow(size + count);
+        }
+        int[] open = new int[16];
+        int depth = 0;
+        for (int x = mid_from; x < mid_to; x++) {
+            int ty = mid.types[x];
+            types[gap] = (byte) ty;
+            starts[gap] = mid.starts[x];
+            ends[gap] = mid.ends[x];
+            if (ty == LPAREN || ty == RPAREN) {
+                if (paren_gap_len == 0) {
+                    grow_parens();
+                }
+                parens[paren_gap] = gap;
+                partner[paren_gap] = UNMATCHED;
+                if (ty == LPAREN) {
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                    }
+                    open[depth++] = paren_gap;
+                } else if (depth > 0) {
+                    int o = open[--depth];
+                    partner[o] = paren_gap;
+                    partner[paren_gap] = o;
+                }
+                paren_gap++;
+                paren_gap_len--;
+                num_parens++;
+            }
+            gap++;
+            gap_len--;
+            size++;
+        }
+        tokens_length = input.length();
+    }
+
+    /*
+     * Moves the token gap, and the parenthesis gap with it, to token "g".
+     * Costs the tokens between the old and the new place.
+     */
+    void move_gap(int g) {
+        if (g < gap) {
+            move_tokens(g, g + gap_len, gap - g);
+            for (int p = g + gap_len; p < gap + gap_len; p++) {
+                starts[p] -= tokens_length;
+                ends[p] -= tokens_length;
+            }
+            clear_tokens(g, Math.min(gap, g + gap_len));
+            gap = g;
+            while (paren_gap > 0 && parens[paren_gap - 1] >= g) {
+                paren_gap--;
+                int p = paren_gap;
+                parens[p + paren_gap_len] = parens[p] - size;
+                partner[p + paren_gap_len] = partner[p];
+                int q = partner_of(p);
+                if (q != -1) {
+                    partner[paren_at(q)] = p - num_parens;
+                }
+            }
+        } else if (g > gap) {
+            move_tokens(gap + gap_len, gap, g - gap);
+            for (int p = gap; p < g; p++) {
+                starts[p] += tokens_length;
+                ends[p] += tokens_length;
+            }
+            clear_tokens(Math.max(g, gap + gap_len), g + gap_len);
+            gap = g;
+            while (paren_gap < num_parens && parens[paren_gap + paren_gap_len] + size < g) {
+                int p = paren_gap;
+                parens[p] = parens[p + paren_gap_len] + size;
+                partner[p] = partner[p + paren_gap_len];
+                paren_gap++;
+                int q = partner_of(p);
+                if (q != -1) {
+                    partner[paren_at(q)] = p;
+                }
+            }
+        }
+    }
+
+    void move_tokens(int from, int to, int count) {
+        System.arraycopy(types, from, types, to, count);
+        System.arraycopy(starts, from, starts, to, count);
+        System.arraycopy(ends, from, ends, to, count);
+        System.arraycopy(node, from, node, to, count);
+        System.arraycopy(parent, from, parent, to, count);
+        System.arraycopy(right, from, right, to, count);
+    }
+
+    //Drops the trees held by the gap entries [from, to)
+    void clear_tokens(int from, int to) {
+        if (from < to) {
+            Arrays.fill(node, from, to, null);
+            Arrays.fill(parent, from, to, null);
+        }
+    }
+
+    //Widens the token gap so that "needed" tokens fit
+    void grow(int needed) {
+        int capacity = Math.max(needed + 16, types.length * 2);
+        int after = size - gap;
+        types = regap(types, types.length, new byte[capacity], capacity, gap, after);
+        starts = regap(starts, starts.length, new int[capacity], capacity, gap, after);
+        ends = regap(ends, ends.length, new int[capacity], capacity, gap, after);
+        node = regap(node, node.length, new Expr[capacity], capacity, gap, after);
+        parent = regap(parent, parent.length, new BinaryExpr[capacity], capacity, gap, after);
+        right = regap(right, right.length, new boolean[capacity], capacity, gap, after);
+        gap_len = capacity - size;
+    }
+
+    void grow_parens() {
+        int capacity = Math.max(16, parens.length * 2);
+        int after = num_parens - paren_gap;
+        parens = regap(parens, parens.length, new int[capacity], capacity, paren_gap, after);
+        partner = regap(partner, partner.length, new int[capacity], capacity, paren_gap, after);
+        paren_gap_len = capacity - num_parens;
+    }
+
+    //Copies the "before" entries in front of the gap of "from" and the "after" entries behind it to the ends of "to"
+    static <A> A regap(A from, int from_length, A to, int to_length, int before, int after) {
+        System.arraycopy(from, 0, to, 0, before);
+        System.arraycopy(from, from_length - after, to, to_length - after, after);
+        return to;
+    }
+
+    //The index in parens and partner of parenthesis p
+    int paren_at(int p) {
+        return p < paren_gap ? p : p + paren_gap_len;
+    }
+
+    //The token of parenthesis p
+    int paren(int p) {
+        return p < paren_gap ? parens[p] : parens[p + paren_gap_len] + size;
+    }
+
+    //The parenthesis matching parenthesis p, or -1
+    int partner_of(int p) {
+        int q = partner[paren_at(p)];
+        if (q == UNMATCHED) {
+            return -1;
+        }
+        return q >= 0 ? q : q + num_parens;
+    }
+
+    //The token of the parenthesis matching the one at token i
+    int match(int i) {
+        return paren(partner_of(first_paren_at_least(i)));
+    }
+
+    //The index of the first parenthesis at token i or later
+    int first_paren_at_least(int i) {
+        int lo = 0;
+        int hi = num_parens;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (paren(mid) < i) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Rebuilds the parenthesis index from all tokens, with its gap at the
+     * token gap. Unmatched parentheses get partner UNMATCHED.
+     */
+    void index_parens() {
+        int[] token = new int[16];
+        int[] match = new int[16];
+        int[] open = new int[16];
+        int count = 0;
+        int depth = 0;
+        int before = 0;
+        for (int i = 0; i < size; i++) {
+            int ty = type(i);
+            if (ty != LPAREN && ty != RPAREN) {
+                continue;
+            }
+            if (count == token.length) {
+                token = Arrays.copyOf(token, count * 2);
+                match = Arrays.copyOf(match, count * 2);
+            }
+            token[count] = i;
+            match[count] = -1;
+            if (ty == LPAREN) {
+                if (depth == open.length) {
+                    open = Arrays.copyOf(open, depth * 2);
+                }
+                open[depth++] = count;
+            } else if (depth > 0) {
+                int o = open[--depth];
+                match[o] = count;
+                match[count] = o;
+            }
+            if (i < gap) {
+                before++;
+            }
+            count++;
+        }
+
+        int capacity = Math.max(16, count * 2);
+        parens = new int[capacity];
+        partner = new int[capacity];
+        num_parens = count;
+        paren_gap = before;
+        paren_gap_len = capacity - count;
+        for (int p = 0; p < count; p++) {
+            int q = match[p];
+            parens[paren_at(p)] = p < before ? token[p] : token[p] - size;
+            partner[paren_at(p)] = q == -1 ? UNMATCHED : q < before ? q : q - count;
+        }
+    }
+
+    //True if every parenthesis in tokens [from, to) of "s" is matched within the range
+    static boolean balanced(TokenStream s, int from, int to) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            if (s.types[i] == LPAREN) {
+                depth++;
+            } else if (s.types[i] == RPAREN) {
+                if (--depth < 0) {
+                    return false;
+                }
+            }
+        }
+        return depth == 0;
+    }
+
+    //The only non-whitespace token in [from, to), -1 if there is none and -2 if there are several
+    static int only_token(TokenStream s, int from, int to) {
+        int ret = -1;
+        for (int i = from; i < to; i++) {
+            if (s.types[i] != WHITE_SPACE) {
+                if (ret != -1) {
+                    return -2;
+                }
+                ret = i;
+            }
+        }
+        return ret;
+    }
+
+    int first_end_at_least(int pos) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (end(mid) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    int first_start_at_least(int pos) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (start(mid) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * IterativeParserImpl, recording for every Lit its Expr and the
+     * BinaryExpr it ends up in. "full" maps the indices of the parsed
+     * stream back to those of the whole token stream.
+     *
+     * Every Lit needs its own node and parent, and edits rewrite nodes in
+     * place, so this parser always builds with ExprFactory.PLAIN: a shared
+     * node from an InterningExprFactory would be edited for every use.
+     */
+    class TrackingParser extends IterativeParserImpl {
+        int[] full;
+        //operand_token[i] is the token whose node is operands[i]
+        int[] operand_token = new int[16];
+        //op_token[i] is the token of ops[i]
+        int[] op_token = new int[16];
+
+        @Override
+        public void set_factory(ExprFactory factory_) {
+            throw new IllegalStateException("IncrementalParse edits its tree in place and cannot share nodes");
+        }
+
+        @Override
+        void push_operand(Expr e) {
+            super.push_operand(e);
+            if (operand_token.length < operands.length) {
+                operand_token = Arrays.copyOf(operand_token, operands.length);
+            }
+            int lit = full[idx];
+            operand_token[num_operands - 1] = lit;
+            node[at(lit)] = e;
+            parent[at(lit)] = null;
+        }
+
+        @Override
+        void push_op(int op) {
+            if (num_ops == op_token.length) {
+                op_token = Arrays.copyOf(op_token, num_ops * 2);
+            }
+            op_token[num_ops] = full[idx];
+            super.push_op(op);
+        }
+
+        @Override
+        void reduce() {
+            int t1 = operand_token[num_operands - 2];
+            int t2 = operand_token[num_operands - 1];
+            int op = op_token[num_ops - 1];
+            super.reduce();
+            BinaryExpr b = (BinaryExpr) operands[num_operands - 1];
+            node[at(op)] = b;
+            parent[at(op)] = null;
+            parent[at(t1)] = b;
+            right[at(t1)] = false;
+            parent[at(t2)] = b;
+            right[at(t2)] = true;
+            operand_token[num_operands - 1] = op;
+        }
+
+        @Override
+        void reduce_group() {
+            super.reduce_group();
+            int open = op_token[num_ops];
+            node[at(open)] = operands[num_operands - 1];
+            parent[at(open)] = null;
+            operand_token[num_operands - 1] = open;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/*
+ * An ExprFactory that hash-conses: asked for a node it has made since the
+ * last reset, it returns that node instead of a new one. Structurally
+ * identical subtrees become one shared object, so a parse returns a DAG,
+ * and an input that repeats a subexpression n times holds it once.
+ *
+ * Operands always come from this factory before the node that uses them,
+ * so two binary nodes are identical exactly when they have the same class
+ * and the same operand objects, and a lookup compares two references
+ * instead of walking two subtrees. Literals are identical when their
+ * float bits are, so 0.0 and -0.0 stay apart. The nodes themselves are
+ * the keys of an open addressing table, so a hit allocates nothing.
+ *
+ * A shared node must never be changed in place, which is why
+ * IncrementalParse, which splices re-parsed subtrees into its tree,
+ * always builds with ExprFactory.PLAIN. Trees returned before a reset
+ * stay valid; they just no longer share with later ones.
+ *
+ * Not thread-safe: every parser needs its own.
+ */
+public class InterningExprFactory extends ExprFactory {
+    static final int LIT = 0;
+    static final int PLUS = 1;
+    static final int MINUS = 2;
+    static final int TIMES = 3;
+    static final int DIV = 4;
+
+    static final int MIN_CAPACITY = 64;
+
+    //Linear probing, at most half full
+    Expr[] table = new Expr[MIN_CAPACITY];
+    int size;
+    //Requests answered with an existing node
+    long hits;
+
+    public int size() {
+        return size;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    /*
+     * Empties the table, first shrinking it to fit the parse that just
+     * ended, so clearing costs about as much as that parse did rather
+     * than as much as the largest parse this factory has ever seen.
+     */
+    @Override
+    public void reset() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 4 * size) {
+            capacity *= 2;
+        }
+        if (table.length > capacity) {
+            table = new Expr[capacity];
+        } else {
+            Arrays.fill(table, null);
+        }
+        size = 0;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    @Override
+    public Expr literal(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int mask = table.length - 1;
+        int i = mix(LIT, bits, 0) & mask;
+        for (Expr e; (e = table[i]) != null; i = (i + 1) & mask) {
+            if (e instanceof FloatExpr && Float.floatToRawIntBits(((FloatExpr) e).getLiteral()) == bits) {
+                hits++;
+                return e;
+            }
+        }
+        return insert(i, new FloatExpr(f));
+    }
+
+    @Override
+    public Expr plus(Expr e1, Expr e2) {
+        return binary(PLUS, e1, e2);
+    }
+
+    @Override
+    public Expr minus(Expr e1, Expr e2) {
+        return binary(MINUS, e1, e2);
+    }
+
+    @Override
+    public Expr times(Expr e1, Expr e2) {
+        return binary(TIMES, e1, e2);
+    }
+
+    @Override
+    public Expr div(Expr e1, Expr e2) {
+        return binary(DIV, e1, e2);
+    }
+
+    Expr binary(int op, Expr e1, Expr e2) {
+        int mask = table.length - 1;
+        int i = mix(op, System.identityHashCode(e1), System.identityHashCode(e2)) & mask;
+        for (Expr e; (e = table[i]) != null; i = (i + 1) & mask) {
+            if (op_of(e) == op && ((BinaryExpr) e).getE1() == e1 && ((BinaryExpr) e).getE2() == e2) {
+                hits++;
+                return e;
+            }
+        }
+        Expr e;
+        if (op == PLUS) {
+            e = new PlusExpr(e1, e2);
+        } else if (op == MINUS) {
+            e = new MinusExpr(e1, e2);
+        } else if (op == TIMES) {
+            e = new TimesExpr(e1, e2);
+        } else {
+            e = new DivExpr(e1, e2);
+        }
+        return insert(i, e);
+    }
+
+    private Expr insert(int i, Expr e) {
+        table[i] = e;
+        size++;
+        if (2 * size > table.length) {
+            rehash();
+        }
+        return e;
+    }
+
+    private void rehash() {
+        Expr[] old = table;
+        table = new Expr[old.length * 2];
+        int mask = table.length - 1;
+        for (Expr e : old) {
+            if (e == null) {
+                continue;
+            }
+            int i = hash(e) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = e;
+        }
+    }
+
+    static int hash(Expr e) {
+        if (e instanceof FloatExpr) {
+            return mix(LIT, Float.floatToRawIntBits(((FloatExpr) e).getLiteral()), 0);
+        }
+        BinaryExpr b = (BinaryExpr) e;
+        return mix(op_of(e), System.identityHashCode(b.getE1()), System.identityHashCode(b.getE2()));
+    }
+
+    static int mix(int op, int a, int b) {
+        int h = (op * 0x9e3779b9 + a) * 0x9e3779b9 + b;
+        return h ^ (h >>> 16);
+    }
+
+    static int op_of(Expr e) {
+        if (e instanceof PlusExpr) {
+            return PLUS;
+        } else if (e instanceof MinusExpr) {
+            return MINUS;
+        } else if (e instanceof TimesExpr) {
+            return TIMES;
+        } else if (e instanceof DivExpr) {
+            return DIV;
+        } else {
+            return LIT;
+        }
+    }
+
+    /*
+     * Evaluates "root" like root.eval(), but computes every distinct node
+     * once however many parents share it, where eval() walks a shared
+     * subtree once per path to it. Works on any tree or DAG, without
+     * recursion.
+     */
+    public static float eval_shared(Expr root) {
+        IdentityHashMap<Expr, Float> values = new IdentityHashMap<Expr, Float>();
+        Expr[] todo = new Expr[16];
+        int top = 0;
+        todo[top++] = root;
+        while (top > 0) {
+            Expr e = todo[top - 1];
+            if (values.containsKey(e)) {
+                top--;
+                continue;
+            }
+            if (e instanceof FloatExpr) {
+                values.put(e, ((FloatExpr) e).getLiteral());
+                top--;
+                continue;
+            }
+            BinaryExpr b = (BinaryExpr) e;
+            Float v1 = values.get(b.getE1());
+            Float v2 = values.get(b.getE2());
+            if (v1 == null || v2 == null) {
+                if (top + 2 > todo.length) {
+                    todo = Arrays.copyOf(todo, todo.length * 2);
+                }
+                if (v2 == null) {
+                    todo[top++] = b.getE2();
+                }
+                if (v1 == null) {
+                    todo[top++] = b.getE1();
+                }
+                continue;
+            }
+            float v;
+            switch (op_of(e)) {
+                case PLUS:
+                    v = v1 + v2;
+                    break;
+                case MINUS:
+                    v = v1 - v2;
+                    break;
+                case TIMES:
+                    v = v1 * v2;
+                    break;
+                default:
+                    v = v1 / v2;
+                    break;
+            }
+            values.put(e, v);
+            top--;
+        }
+        return values.get(root);
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/*
+ * Parses the same grammar with the same SDT actions as ParserImpl, but
+ * without recursion. Operands and pending operators live on two array
+ * stacks, so Java stack use stays constant however long or deeply nested
+ * the expression is, and every token is handled once.
+ *
+ * Both T and F are right recursive, so every operator is right
+ * associative: an operator is only reduced when an operator of lower
+ * precedence, an RPAREN or the end of input closes it. MulOps bind
+ * tighter than AddOps, which is how F nests inside T.
+ */
+public class IterativeParserImpl extends Parser {
+    static final int LPAREN = TokenType.LPAREN.ordinal();
+
+    Expr[] operands = new Expr[16];
+    int num_operands;
+    //Pending operators as TokenType ordinals; LPAREN marks an open parenthesis
+    byte[] ops = new byte[16];
+    int num_ops;
+
+    @Override
+    public Expr do_parse() throws Exception {
+        try {
+            shift_reduce();
+            return operands[0];
+        } finally {
+            //Do not hold on to the tree between parses
+            Arrays.fill(operands, 0, num_operands, null);
+        }
+    }
+
+    /*
+     * Runs the parse, leaving the whole expression as the only operand.
+     * Subclasses that keep operands in another form override
+     * push_literal and reduce.
+     */
+    void shift_reduce() throws Exception {
+        num_operands = 0;
+        num_ops = 0;
+        int depth = 0;
+
+        while (true) {
+            //Lit -> LPAREN T RPAREN opens a group
+            while (peek(TokenType.LPAREN, 0)) {
+                push_op(LPAREN);
+                depth++;
+                idx++;
+            }
+
+            //Lit -> NUM
+            if (at_end()) {
+                throw new Exception("Unexpected end of input, expected NUM or LPAREN");
+            }
+            if (!peek(TokenType.NUM, 0)) {
+                throw new Exception("Parsing error: expected NUM or LPAREN, found " + tokens.type(idx));
+            }
+            push_literal();
+            idx++;
+
+            //Close every group that ends after this Lit
+            while (peek(TokenType.RPAREN, 0) && depth > 0) {
+                reduce_group();
+                depth--;
+                idx++;
+            }
+
+            if (peek(TokenType.TIMES, 0) || peek(TokenType.DIV, 0)) {
+                push_op(tokens.types[idx]);
+                idx++;
+            } else if (peek(TokenType.PLUS, 0) || peek(TokenType.MINUS, 0)) {
+                //The F to the left of an AddOp is complete
+                while (num_ops > 0 && is_mul_op(ops[num_ops - 1])) {
+                    reduce();
+                }
+                push_op(tokens.types[idx]);
+                idx++;
+            } else if (depth > 0) {
+                //Only an RPAREN may follow a Lit inside a group
+                if (at_end()) {
+                    throw new Exception("Parsing error: unexpected end of input, expected " + TokenType.RPAREN);
+                }
+                throw new Exception("Parsing error on token: " + tokens.lexeme(idx));
+            } else if (!at_end()) {
+                throw new Exception("Expected end of input, but found token: " + tokens.lexeme(idx));
+            } else {
+                while (num_ops > 0) {
+                    reduce();
+                }
+                return;
+            }
+        }
+    }
+
+    static boolean is_mul_op(int op) {
+        return op == TokenType.TIMES.ordinal() || op == TokenType.DIV.ordinal();
+    }
+
+    //Lit -> NUM, for the NUM token at idx
+    void push_literal() {
+        push_operand(factory.literal(tokens.number(idx)));
+    }
+
+    void push_operand(Expr e) {
+        if (num_operands == operands.length) {
+            operands = Arrays.copyOf(operands, num_operands * 2);
+        }
+        operands[num_operands++] = e;
+    }
+
+    void push_op(int op) {
+        if (num_ops == ops.length) {
+            ops = Arrays.copyOf(ops, num_ops * 2);
+        }
+        ops[num_ops++] = (byte) op;
+    }
+
+    //Applies the SDT action of the topmost operator to the two topmost operands
+    void reduce() {
+        int op = ops[--num_ops];
+        Expr e2 = operands[--num_operands];
+        Expr e1 = operands[num_operands - 1];
+        Expr e = factory.binary(TokenStream.TYPES[op], e1, e2);
+        operands[num_operands - 1] = e;
+        operands[num_operands] = null;
+    }
+
+    //Reduces everything back to the innermost open LPAREN and drops it
+    void reduce_group() {
+        while (ops[num_ops - 1] != LPAREN) {
+            reduce();
+        }
+        num_ops--;
+    }
+}
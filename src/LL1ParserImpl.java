@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/*
+ * A table-driven LL(1) parser for the grammar in Parser's doc comment.
+ * The predict table is generated by Grammar from GRAMMAR below, and the
+ * parse runs on a primitive int stack of symbols, so it needs no method
+ * frame per production and no exceptions unless the input is invalid.
+ *
+ * Every matched terminal and every completed nonterminal leaves one value
+ * on a value stack. When an original production is complete, its action
+ * pops one value per symbol and pushes $$:
+ *
+ *     (none)   $$ = $1
+ *     #num     $$ = new FloatExpr(Float.parseFloat($1.lexeme))
+ *     #binary  $$ = new PlusExpr/MinusExpr/TimesExpr/DivExpr($1, $3) by $2.type
+ *     #group   $$ = $2
+ */
+public class LL1ParserImpl extends Parser {
+    static final String GRAMMAR =
+          "T -> F AddOp T          #binary\n"
+        + "T -> F\n"
+        + "F -> Lit MulOp F        #binary\n"
+        + "F -> Lit\n"
+        + "Lit -> NUM              #num\n"
+        + "Lit -> LPAREN T RPAREN  #group\n"
+        + "AddOp -> PLUS\n"
+        + "AddOp -> MINUS\n"
+        + "MulOp -> TIMES\n"
+        + "MulOp -> DIV\n";
+
+    static final int ACTION_COPY = 0;
+    static final int ACTION_NUM = 1;
+    static final int ACTION_BINARY = 2;
+    static final int ACTION_GROUP = 3;
+
+    //Tables shared by every LL1ParserImpl; never written after class initialization
+    static final Grammar grammar = new Grammar(GRAMMAR);
+    static final int[] predict = grammar.predict;
+    static final int start = grammar.start;
+    //For each factored production: its body, and the reduce marker pushed below it (0 for none)
+    static final int[][] bodies = new int[grammar.rhs.size()][];
+    static final int[] reduce_marker = new int[grammar.rhs.size()];
+    //For each original production: how many values it pops, and which action builds $$
+    static final int[] orig_length = new int[grammar.orig_length.size()];
+    static final int[] orig_action = new int[grammar.orig_length.size()];
+
+    static {
+        for (int p = 0; p < bodies.length; p++) {
+            bodies[p] = grammar.rhs.get(p);
+            int orig = grammar.completes.get(p);
+            //Reduce markers are negative so they never collide with symbol ids
+            reduce_marker[p] = orig == -1 ? 0 : -1 - orig;
+        }
+        for (int orig = 0; orig < orig_length.length; orig++) {
+            orig_length[orig] = grammar.orig_length.get(orig);
+            String action = grammar.orig_action.get(orig);
+            if (action == null) {
+                orig_action[orig] = ACTION_COPY;
+            } else if (action.equals("num")) {
+                orig_action[orig] = ACTION_NUM;
+            } else if (action.equals("binary")) {
+                orig_action[orig] = ACTION_BINARY;
+            } else if (action.equals("group")) {
+                orig_action[orig] = ACTION_GROUP;
+            } else {
+                throw new IllegalArgumentException("Unknown action #" + action);
+            }
+        }
+    }
+
+    int[] stack = new int[64];
+    int stack_size;
+    //Value i is either an Expr or the index of the token it came from
+    Expr[] value_exprs = new Expr[64];
+    int[] value_tokens = new int[64];
+    int num_values;
+
+    @Override
+    public Expr do_parse() throws Exception {
+        stack_size = 0;
+        num_values = 0;
+        push(Grammar.EOF);
+        push(start);
+
+        try {
+            while (true) {
+                int sym = stack[--stack_size];
+                int look = at_end() ? Grammar.EOF : tokens.types[idx];
+
+                if (sym < 0) {
+                    reduce(-1 - sym);
+                } else if (sym < Grammar.NUM_TERMINALS) {
+                    if (sym != look) {
+                        throw error(sym, look);
+                    }
+                    if (sym == Grammar.EOF) {
+                        return value_exprs[0];
+                    }
+                    push_value(null, idx);
+                    idx++;
+                } else {
+                    int p = predict[(sym - Grammar.NUM_TERMINALS) * Grammar.NUM_TERMINALS + look];
+                    if (p == -1) {
+                        throw error(sym, look);
+                    }
+                    if (reduce_marker[p] != 0) {
+                        push(reduce_marker[p]);
+                    }
+                    int[] body = bodies[p];
+                    for (int i = body.length - 1; i >= 0; i--) {
+                        push(body[i]);
+                    }
+                }
+            }
+        } finally {
+            Arrays.fill(value_exprs, 0, num_values, null);
+        }
+    }
+
+    /*
+     * The error for "look" when "sym", just popped, does not allow it.
+     * The message depends on the terminals the stack allows here, so it
+     * matches IterativeParserImpl's and never names a nonterminal that
+     * left factoring made up.
+     */
+    Exception error(int sym, int look) {
+        boolean[] allowed = allowed(sym);
+        if (allowed[Grammar.EOF]) {
+            return new Exception("Expected end of input, but found token: " + tokens.lexeme(idx));
+        }
+        if (allowed[TokenType.RPAREN.ordinal()]) {
+            if (look == Grammar.EOF) {
+                return new Exception("Parsing error: unexpected end of input, expected " + TokenType.RPAREN);
+            }
+            return new Exception("Parsing error on token: " + tokens.lexeme(idx));
+        }
+        StringBuilder names = new StringBuilder();
+        for (int t = 0; t < Grammar.NUM_TERMINALS; t++) {
+            if (allowed[t]) {
+                if (names.length() > 0) {
+                    names.append(" or ");
+                }
+                names.append(grammar.names.get(t));
+            }
+        }
+        if (look == Grammar.EOF) {
+            return new Exception("Unexpected end of input, expected " + names);
+        }
+        return new Exception("Parsing error: expected " + names + ", found " + tokens.type(idx));
+    }
+
+    //The terminals that may come next with "sym" on top of the stack
+    boolean[] allowed(int sym) {
+        boolean[] ret = new boolean[Grammar.NUM_TERMINALS];
+        for (int i = stack_size; i >= 0; i--) {
+            int s = i == stack_size ? sym : stack[i];
+            if (s < 0) {
+                continue;
+            }
+            for (int t = 0; t < Grammar.NUM_TERMINALS; t++) {
+                ret[t] |= grammar.first[s][t];
+            }
+            if (s < Grammar.NUM_TERMINALS || !grammar.nullable[s]) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    void push(int sym) {
+        if (stack_size == stack.length) {
+            stack = Arrays.copyOf(stack, stack_size * 2);
+        }
+        stack[stack_size++] = sym;
+    }
+
+    void push_value(Expr e, int token) {
+        if (num_values == value_exprs.length) {
+            value_exprs = Arrays.copyOf(value_exprs, num_values * 2);
+            value_tokens = Arrays.copyOf(value_tokens, num_values * 2);
+        }
+        value_exprs[num_values] = e;
+        value_tokens[num_values] = token;
+        num_values++;
+    }
+
+    //Pops the values of original production "orig" and pushes the result of its action
+    void reduce(int orig) {
+        int base = num_values - orig_length[orig];
+        Expr e;
+        int token = -1;
+        switch (orig_action[orig]) {
+            case ACTION_NUM:
+                e = factory.literal(tokens.number(value_tokens[base]));
+                break;
+            case ACTION_BINARY:
+                e = factory.binary(tokens.type(value_tokens[base + 1]), value_exprs[base], value_exprs[base + 2]);
+                break;
+            case ACTION_GROUP:
+                e = value_exprs[base + 1];
+                break;
+            default:
+                e = value_exprs[base];
+                token = value_tokens[base];
+                break;
+        }
+        Arrays.fill(value_exprs, base, num_values, null);
+        num_values = base;
+        push_value(e, token);
+    }
+}
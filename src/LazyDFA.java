@@ -0,0 +1,220 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Runs an NFAProgram as a DFA that is built while it runs, as RE2 does.
+ * Each DFA state is a set of NFA states, and is created the first time
+ * apply reaches that set. Its transitions are filled in one at a time,
+ * the first time each is taken, so a hot loop over a few states soon
+ * runs at DFA speed: one table lookup per char.
+ *
+ * At most max_states DFA states are kept, in a table of max_states *
+ * num_classes ints that is allocated up front. When a new state does not
+ * fit, the whole cache is flushed and rebuilt from the state being
+ * entered. If the cache is flushed again before it has served
+ * FALLBACK_FACTOR chars per state, inputs are visiting new states faster
+ * than the cache can pay for them, and the run falls back to plain NFA
+ * simulation until the next reset.
+ *
+ * A LazyDFA belongs to one automaton, so it needs no locking; cursors of
+ * a frozen automaton each get their own.
+ */
+class LazyDFA {
+    static final int DEAD = -1;
+    //Transition not computed yet
+    static final int UNKNOWN = -2;
+    //Same bail-out rule as RE2: fewer than this many chars per cached state since the last flush
+    static final int FALLBACK_FACTOR = 10;
+
+    /*
+     * Counters of one LazyDFA, summed over all runs since it was made.
+     */
+    static class Stats {
+        final long hits;
+        final long misses;
+        final long flushes;
+        final long fallbacks;
+        final int cached_states;
+
+        public Stats(long hits_, long misses_, long flushes_, long fallbacks_, int cached_states_) {
+            hits = hits_;
+            misses = misses_;
+            flushes = flushes_;
+            fallbacks = fallbacks_;
+            cached_states = cached_states_;
+        }
+
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " flushes=" + flushes + " fallbacks=" + fallbacks + " cached_states=" + cached_states;
+        }
+    }
+
+    final NFAProgram program;
+    final int max_states;
+    final int num_classes;
+
+    //table[d * num_classes + cls] is the next DFA state, DEAD or UNKNOWN
+    final int[] table;
+    final boolean[] accepting;
+    final NFAProgram.Subset[] subsets;
+    final HashMap<NFAProgram.Subset, Integer> ids;
+    int num_cached;
+    //DFA state of the start states, or UNKNOWN if it was flushed
+    int start_state = UNKNOWN;
+
+    //Where the current run is: a DFA state, or the NFA states in current once fallen back
+    int state = DEAD;
+    boolean fallen_back;
+    NFAProgram.StateSet current;
+    NFAProgram.StateSet next;
+    long chars_since_flush;
+
+    long hits;
+    long misses;
+    long flushes;
+    long fallbacks;
+
+    LazyDFA(NFAProgram program_, int max_states_) {
+        if (max_states_ < 1) {
+            throw new IllegalArgumentException("A lazy DFA needs room for at least 1 state, got " + max_states_);
+        }
+        program = program_;
+        max_states = max_states_;
+        num_classes = program.num_classes;
+        table = new int[max_states * num_classes];
+        accepting = new boolean[max_states];
+        subsets = new NFAProgram.Subset[max_states];
+        ids = new HashMap<NFAProgram.Subset, Integer>();
+        current = new NFAProgram.StateSet(program.num_states);
+        next = new NFAProgram.StateSet(program.num_states);
+    }
+
+    Stats stats() {
+        return new Stats(hits, misses, flushes, fallbacks, num_cached);
+    }
+
+    void reset() {
+        fallen_back = false;
+        if (start_state == UNKNOWN) {
+            program.start(next);
+            int d = enter(next);
+            if (fallen_back) {
+                return;
+            }
+            start_state = d;
+        }
+        state = start_state;
+    }
+
+    void apply(char input) {
+        int cls = program.classOf(input);
+        chars_since_flush++;
+        if (fallen_back) {
+            program.step(current, cls, next);
+            NFAProgram.StateSet tmp = current;
+            current = next;
+            next = tmp;
+            return;
+        }
+        if (state == DEAD || cls == NFAProgram.DEAD) {
+            state = DEAD;
+            return;
+        }
+
+        int t = table[state * num_classes + cls];
+        if (t != UNKNOWN) {
+            hits++;
+            state = t;
+            return;
+        }
+
+        misses++;
+        load(state, current);
+        program.step(current, cls, next);
+        long flushes_before = flushes;
+        t = enter(next);
+        //After a flush, state no longer names the source of this transition
+        if (flushes == flushes_before && !fallen_back) {
+            table[state * num_classes + cls] = t;
+        }
+        state = t;
+    }
+
+    boolean accepts() {
+        if (fallen_back) {
+            return program.accepts(current);
+        }
+        return state != DEAD && accepting[state];
+    }
+
+    boolean hasTransitions(char label) {
+        int cls = program.classOf(label);
+        if (fallen_back) {
+            return program.hasTransitions(current, cls);
+        }
+        if (state == DEAD || cls == NFAProgram.DEAD) {
+            return false;
+        }
+        //The successor is empty exactly when no transition exists, so a known entry answers
+        int t = table[state * num_classes + cls];
+        if (t != UNKNOWN) {
+            return t != DEAD;
+        }
+        load(state, current);
+        return program.hasTransitions(current, cls);
+    }
+
+    //Fills "set" with the NFA states of DFA state d
+    void load(int d, NFAProgram.StateSet set) {
+        set.size = 0;
+        for (int s : subsets[d].states) {
+            set.add(s);
+        }
+    }
+
+    /*
+     * Returns the DFA state for the NFA states in "set", creating it if
+     * needed. When the cache is full it is flushed first, or, if it is
+     * thrashing, the run falls back to NFA simulation from "set" and
+     * DEAD is returned in place of a state.
+     */
+    int enter(NFAProgram.StateSet set) {
+        if (set.size == 0) {
+            return DEAD;
+        }
+        NFAProgram.Subset key = NFAProgram.Subset.of(set);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        if (num_cached == max_states) {
+            if (flushes > 0 && chars_since_flush < (long) FALLBACK_FACTOR * max_states) {
+                fallbacks++;
+                fallen_back = true;
+                current.size = 0;
+                for (int s : key.states) {
+                    current.add(s);
+                }
+                return DEAD;
+            }
+            flush();
+        }
+
+        int d = num_cached++;
+        Arrays.fill(table, d * num_classes, (d + 1) * num_classes, UNKNOWN);
+        subsets[d] = key;
+        accepting[d] = program.accepts(set);
+        ids.put(key, d);
+        return d;
+    }
+
+    void flush() {
+        flushes++;
+        chars_since_flush = 0;
+        ids.clear();
+        Arrays.fill(subsets, 0, num_cached, null);
+        num_cached = 0;
+        start_state = UNKNOWN;
+    }
+}
@@ -33,11 +33,11 @@ class TokenList {
     }
 
     String toString_helper() {
-        if(rest == null) {
-            return elem.toString();
-        } else{
-            return elem.toString() + "; " + rest.toString_helper();
+        StringBuilder ret = new StringBuilder(elem.toString());
+        for(TokenList cur = rest; cur != null; cur = cur.rest) {
+            ret.append("; ").append(cur.elem.toString());
         }
+        return ret.toString();
     }
 
     public String toString() {
@@ -45,11 +45,11 @@ class TokenList {
     }
 
     public int length() {
-        if(rest == null) {
-            return 1;
-        } else {
-            return 1 + rest.length();
+        int ret = 0;
+        for(TokenList cur = this; cur != null; cur = cur.rest) {
+            ret++;
         }
+        return ret;
     }
 }
 
@@ -59,8 +59,39 @@ public interface Lexer {
      */
     public void add_automaton(TokenType ty, Automaton a);
 
+    /*
+     * Add an automaton to match tokens of type "ty". If "skip" is true,
+     * tokens of that type are still matched but can be left out of the
+     * scan result (see scan_stream). Lexers that cannot skip only take
+     * "skip" false.
+     */
+    public default void add_automaton(TokenType ty, Automaton a, boolean skip) {
+        if (skip) {
+            throw new UnsupportedOperationException(getClass().getName() + " cannot skip tokens");
+        }
+        add_automaton(ty, a);
+    }
+
     /*
      * Turn the input string into a sequence of tokens.
      */
     public TokenList scan(String input);
+
+    /*
+     * Turn the input into a sequence of tokens stored as offsets into
+     * "input". Lexemes are only copied out when asked for. By default the
+     * stream is built from scan(), so the lexemes are copied anyway.
+     */
+    public default TokenStream scan_stream(CharSequence input) {
+        return scan_stream(input, false);
+    }
+
+    /*
+     * Like scan_stream(input), but tokens of types added with "skip" set
+     * are dropped during the scan unless "keep_skipped" is true. By default
+     * no type is skipped (see add_automaton), so nothing is dropped.
+     */
+    public default TokenStream scan_stream(CharSequence input, boolean keep_skipped) {
+        return TokenStream.from_list(scan(input.toString()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * One DFA that runs every registered token automaton at once. Each state
+ * is a tuple of component DFA states (the product construction), so a
+ * single table lookup per char advances all token types together.
+ *
+ * Every state is tagged with the token type it accepts, if any. When
+ * several components accept in the same state, the tag is the first of
+ * them in TokenType order, which is the order LexerImpl has always used
+ * to break ties.
+ */
+class LexerDFA {
+    static final int DEAD = DFAImpl.DEAD;
+
+    final int num_states;
+    final int num_classes;
+    final int start_state;
+    //char_class[c] is the column of char c, or DEAD if no automaton reads c
+    final int[] char_class;
+    //table[s * num_classes + cls] is the next state, or DEAD once every component has died
+    final int[] table;
+    //accept_type[s] is the ordinal of the TokenType accepted in s, or DEAD
+    final int[] accept_type;
+
+    static final TokenType[] TYPES = TokenType.values();
+
+    LexerDFA(int num_states_, int num_classes_, int start_state_, int[] char_class_, int[] table_, int[] accept_type_) {
+        num_states = num_states_;
+        num_classes = num_classes_;
+        start_state = start_state_;
+        char_class = char_class_;
+        table = table_;
+        accept_type = accept_type_;
+    }
+
+    /*
+     * Builds the product DFA of "automata". Returns null if one of them
+     * is not an AutomatonImpl or DFAImpl, since other implementations do
+     * not expose their transitions.
+     */
+    static LexerDFA compile(EnumMap<TokenType, Automaton> automata) {
+        int k = automata.size();
+        DFAImpl[] parts = new DFAImpl[k];
+        int[] types = new int[k];
+        int i = 0;
+        for (Map.Entry<TokenType, Automaton> entry : automata.entrySet()) {
+            Automaton a = entry.getValue();
+            if (a instanceof DFAImpl) {
+                parts[i] = (DFAImpl) a;
+            } else if (a instanceof AutomatonImpl) {
+                parts[i] = ((AutomatonImpl) a).determinize();
+            } else {
+                return null;
+            }
+            types[i] = entry.getKey().ordinal();
+            i++;
+        }
+
+        //Chars in the same class of every component share a column
+        int max_len = 0;
+        for (DFAImpl d : parts) {
+            max_len = Math.max(max_len, d.char_class.length);
+        }
+        int[] char_class = new int[max_len];
+        Arrays.fill(char_class, DEAD);
+        for (DFAImpl d : parts) {
+            for (int c = 0; c < d.char_class.length; c++) {
+                if (d.char_class[c] != DEAD) {
+                    char_class[c] = 0;
+                }
+            }
+        }
+        int num_classes = 0;
+        int[] component_class = new int[max_len];
+        for (DFAImpl d : parts) {
+            Arrays.fill(component_class, DEAD);
+            System.arraycopy(d.char_class, 0, component_class, 0, d.char_class.length);
+            num_classes = CharClasses.refine(char_class, component_class);
+        }
+        //One char of each class stands for all of them
+        char[] alphabet = new char[num_classes];
+        for (int c = max_len - 1; c >= 0; c--) {
+            if (char_class[c] != DEAD) {
+                alphabet[char_class[c]] = (char) c;
+            }
+        }
+
+        //Breadth-first product construction over reachable tuples
+        HashMap<ArrayList<Integer>, Integer> ids = new HashMap<ArrayList<Integer>, Integer>();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+
+        ArrayList<Integer> start = new ArrayList<Integer>();
+        boolean start_alive = false;
+        for (DFAImpl d : parts) {
+            start.add(d.start_state);
+            start_alive |= d.start_state != DEAD;
+        }
+        int start_state = DEAD;
+        if (start_alive) {
+            start_state = 0;
+            ids.put(start, 0);
+            tuples.add(start);
+        }
+
+        for (int s = 0; s < tuples.size(); s++) {
+            ArrayList<Integer> tuple = tuples.get(s);
+            int[] row = new int[num_classes];
+            for (int cls = 0; cls < num_classes; cls++) {
+                char c = alphabet[cls];
+                ArrayList<Integer> next = new ArrayList<Integer>(k);
+                boolean alive = false;
+                for (int j = 0; j < k; j++) {
+                    int t = parts[j].step(tuple.get(j), c);
+                    next.add(t);
+                    alive |= t != DEAD;
+                }
+
+                if (!alive) {
+                    row[cls] = DEAD;
+                } else {
+                    Integer id = ids.get(next);
+                    if (id == null) {
+                        id = tuples.size();
+                        ids.put(next, id);
+                        tuples.add(next);
+                    }
+                    row[cls] = id;
+                }
+            }
+            rows.add(row);
+        }
+
+        int num_states = tuples.size();
+        int[] table = new int[num_states * num_classes];
+        int[] accept_type = new int[num_states];
+        for (int s = 0; s < num_states; s++) {
+            System.arraycopy(rows.get(s), 0, table, s * num_classes, num_classes);
+            accept_type[s] = DEAD;
+            ArrayList<Integer> tuple = tuples.get(s);
+            //Components are in EnumMap order, so the first accepting one wins
+            for (int j = 0; j < k; j++) {
+                int t = tuple.get(j);
+                if (t != DEAD && parts[j].accepting[t]) {
+                    accept_type[s] = types[j];
+                    break;
+                }
+            }
+        }
+
+        //Product states can make classes that differ in some component behave alike
+        int[] merged = CharClasses.mergeColumns(table, num_states, num_classes);
+        return new LexerDFA(num_states, CharClasses.count(merged), start_state, CharClasses.remapChars(char_class, merged),
+                CharClasses.remapTable(table, num_states, num_classes, merged), accept_type);
+    }
+
+    /*
+     * Returns the state reached from "state" on "input", or DEAD.
+     */
+    int step(int state, char input) {
+        if (state == DEAD || input >= char_class.length) {
+            return DEAD;
+        }
+        int cls = char_class[input];
+        if (cls == DEAD) {
+            return DEAD;
+        }
+        return table[state * num_classes + cls];
+    }
+}
@@ -1,20 +1,439 @@
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.EnumMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+/*
+ * By default a token runs for as long as any automaton can still move,
+ * and takes the type accepted at its first accepting position. With
+ * maximal munch enabled, a token is instead the longest prefix that some
+ * automaton accepts, with ties going to the first TokenType.
+ *
+ * Maximal munch is linear in the input length. The scanner remembers the
+ * last accepting offset and its type, and backs up to it when every
+ * automaton has died. Each (state, position) pair seen after the last
+ * accept of a token is recorded as a dead end, following Reps' "Maximal-
+ * munch tokenization in linear time", and a later token that reaches one
+ * of those pairs stops right there. So no pair is stepped through more
+ * than twice, and a scan costs at most 2 * states * length steps,
+ * whatever the input. For example, a run of k digits without a
+ * ".digit" is read once. NUM never accepts on it, so the scan reports
+ * a lexing error after k steps, and no token ever re-reads those digits.
+ */
 public class LexerImpl implements Lexer {
     EnumMap<TokenType, Automaton> automata;
-    EnumMap<TokenType, Boolean> prev_accepts;
+    //Product of all registered automata, built on the first scan after a change
+    LexerDFA compiled;
+    boolean maximal_munch = false;
+    //A frozen lexer accepts no more automata and can be shared by all threads
+    boolean frozen = false;
+    //skipped[ty.ordinal()] is true for token types that scans may drop
+    boolean[] skipped = new boolean[TokenType.values().length];
+    static final boolean[] NO_SKIPS = new boolean[TokenType.values().length];
+    //Chars per speculatively scanned chunk in scan_parallel
+    static final int PARALLEL_CHUNK = 1 << 20;
 
     public LexerImpl() {
         automata = new EnumMap<>(TokenType.class);
     }
 
+    public LexerImpl(boolean maximal_munch_) {
+        this();
+        maximal_munch = maximal_munch_;
+    }
+
     @Override
     public void add_automaton(TokenType ty, Automaton a) {
+        add_automaton(ty, a, false);
+    }
+
+    @Override
+    public void add_automaton(TokenType ty, Automaton a, boolean skip) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot add an automaton to a frozen LexerImpl");
+        }
         automata.put(ty, a);
+        skipped[ty.ordinal()] = skip;
+        compiled = null;
+    }
+
+    /*
+     * Builds the fused DFA now rather than on the first scan. After that,
+     * and until another automaton is added, scanning does not modify the
+     * lexer, so one instance can serve several threads at once. Does
+     * nothing on a frozen lexer, whose DFA other threads may be using.
+     */
+    public void compile() {
+        if (frozen) {
+            return;
+        }
+        compiled = LexerDFA.compile(automata);
+    }
+
+    /*
+     * Compiles the lexer and makes it read-only. A frozen lexer keeps all
+     * of its scanning state in local variables, so any number of threads
+     * can scan with it at once, without locks. Fails if some automaton
+     * cannot be fused, since stepping shared automata is not thread-safe.
+     */
+    public LexerImpl freeze() {
+        compile();
+        if (compiled == null) {
+            throw new IllegalStateException("Only lexers built from AutomatonImpl or DFAImpl automata can be frozen");
+        }
+        frozen = true;
+        return this;
     }
 
     @Override
     public TokenList scan(String input) {
+        if (compiled == null) {
+            compiled = LexerDFA.compile(automata);
+        }
+        if (compiled == null) {
+            //Some automaton does not expose its transitions, step them one by one
+            return scan_automata(input);
+        }
+        return scan_stream(input).to_list();
+    }
+
+    @Override
+    public TokenStream scan_stream(CharSequence input) {
+        return scan_stream(input, true);
+    }
+
+    @Override
+    public TokenStream scan_stream(CharSequence input, boolean keep_skipped) {
+        if (compiled == null) {
+            compiled = LexerDFA.compile(automata);
+        }
+        if (compiled == null) {
+            TokenStream ret = TokenStream.from_list(scan_automata(input.toString()));
+            if (!keep_skipped) {
+                for (TokenType ty : automata.keySet()) {
+                    if (skipped[ty.ordinal()]) {
+                        ret = ret.without(ty);
+                    }
+                }
+            }
+            return ret;
+        }
+
+        boolean[] drop = keep_skipped ? NO_SKIPS : skipped;
+        TokenStream ret = new TokenStream(input, Math.max(16, input.length() / 8));
+        if (maximal_munch) {
+            scan_longest(input, 0, input.length(), drop, ret);
+        } else {
+            scan_first_accept(input, 0, input.length(), drop, ret);
+        }
+        return ret;
+    }
+
+    /*
+     * Like scan_stream(input, keep_skipped), with the input cut into
+     * chunks of PARALLEL_CHUNK chars that are scanned at the same time on
+     * the ForkJoinPool of the calling task, or on the common pool.
+     */
+    public TokenStream scan_parallel(CharSequence input, boolean keep_skipped) {
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        return scan_parallel(input, keep_skipped, pool == null ? ForkJoinPool.commonPool() : pool, PARALLEL_CHUNK);
+    }
+
+    /*
+     * Scans "input" in chunks of "chunk" chars on "pool" and returns the
+     * same tokens as scan_stream(input, keep_skipped).
+     *
+     * Every chunk is scanned speculatively, as if a token started at its
+     * first char. The chunks are then stitched in order: once the true
+     * scan reaches a position where the speculative scan of a chunk also
+     * started a token, the two agree from there on, since a scan from a
+     * token start depends on nothing before it, and the rest of that
+     * chunk's tokens are copied as they are. Only the tokens before that
+     * point, usually the one token that straddles the chunk boundary, are
+     * scanned again. Dropped tokens are left out of the speculative scans
+     * too, so the scans may only meet one token later. A speculative scan
+     * that fails just stops; if the error is real, the true scan reports
+     * it at the same position as scan_stream would.
+     */
+    public TokenStream scan_parallel(CharSequence input, boolean keep_skipped, ForkJoinPool pool, int chunk) {
+        if (chunk < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive, got " + chunk);
+        }
+        if (compiled == null) {
+            compiled = LexerDFA.compile(automata);
+        }
+        if (compiled == null || input.length() <= chunk) {
+            return scan_stream(input, keep_skipped);
+        }
+
+        boolean[] drop = keep_skipped ? NO_SKIPS : skipped;
+        int num_chunks = (int) (((long) input.length() + chunk - 1) / chunk);
+        TokenStream[] speculative = new TokenStream[num_chunks];
+        pool.invoke(new ChunkTask(input, chunk, drop, speculative, 0, num_chunks));
+
+        int capacity = 16;
+        for (TokenStream s : speculative) {
+            capacity += s.size;
+        }
+        TokenStream ret = new TokenStream(input, capacity);
+        TokenStream one = new TokenStream(input, 1);
+        int pos = 0;
+        for (int k = 0; k < num_chunks; k++) {
+            TokenStream s = speculative[k];
+            int end = (int) Math.min((long) (k + 1) * chunk, input.length());
+            while (pos < end) {
+                int i = Arrays.binarySearch(s.starts, 0, s.size, pos);
+                if (i >= 0) {
+                    //In step with the speculative scan: take the rest of its tokens
+                    ret.add_all(s, i, s.size);
+                    pos = s.ends[s.size - 1];
+                    continue;
+                }
+                one.size = 0;
+                pos = scan_one(input, pos, one);
+                if (!drop[one.types[0]]) {
+                    ret.add(one.types[0], one.starts[0], one.ends[0]);
+                }
+            }
+            ret.steps += s.steps;
+            ret.backtracks += s.backtracks;
+        }
+        ret.steps += one.steps;
+        return ret;
+    }
+
+    /*
+     * Scans chunks lo .. hi - 1 speculatively, splitting the range in
+     * halves until one chunk is left.
+     */
+    @SuppressWarnings("serial")
+    class ChunkTask extends RecursiveAction {
+        final CharSequence input;
+        final int chunk;
+        final boolean[] drop;
+        final TokenStream[] speculative;
+        final int lo;
+        final int hi;
+
+        ChunkTask(CharSequence input_, int chunk_, boolean[] drop_, TokenStream[] speculative_, int lo_, int hi_) {
+            input = input_;
+            chunk = chunk_;
+            drop = drop_;
+            speculative = speculative_;
+            lo = lo_;
+            hi = hi_;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ChunkTask(input, chunk, drop, speculative, lo, mid),
+                          new ChunkTask(input, chunk, drop, speculative, mid, hi));
+                return;
+            }
+
+            int from = lo * chunk;
+            int to = (int) Math.min((long) from + chunk, input.length());
+            TokenStream out = new TokenStream(input, Math.max(16, (to - from) / 8));
+            try {
+                if (maximal_munch) {
+                    scan_longest(input, from, to, drop, out);
+                } else {
+                    scan_first_accept(input, from, to, drop, out);
+                }
+            } catch (RuntimeException e) {
+                //The chunk may not start at a token boundary; out keeps the tokens before the failure
+            }
+            speculative[lo] = out;
+        }
+    }
+
+    /*
+     * Returns an iterator over the tokens read from "in", scanned one at a
+     * time through a bounded buffer (see TokenReader). Tokens of types
+     * added with "skip" set are dropped unless "keep_skipped" is true.
+     */
+    public TokenReader scan_reader(Reader in, boolean keep_skipped) {
+        return new TokenReader(this, in, keep_skipped, TokenReader.DEFAULT_CAPACITY);
+    }
+
+    /*
+     * Like scan_reader(in, keep_skipped), with a buffer of at least
+     * "capacity" chars. No token may be longer than the buffer.
+     */
+    public TokenReader scan_reader(Reader in, boolean keep_skipped, int capacity) {
+        return new TokenReader(this, in, keep_skipped, capacity);
+    }
+
+    /*
+     * Like scan_reader, over the bytes of "channel" decoded with "charset".
+     */
+    public TokenReader scan_channel(ReadableByteChannel channel, Charset charset, boolean keep_skipped) {
+        return new TokenReader(this, channel, charset, keep_skipped, TokenReader.DEFAULT_CAPACITY);
+    }
+
+    /*
+     * Scans the one token that starts at "start_pos" and adds it to "out",
+     * whatever its type. Returns the offset just past it. Used to re-scan
+     * the part of an input that an edit touched (see IncrementalParse), so
+     * the lexer must be compiled.
+     */
+    int scan_one(CharSequence input, int start_pos, TokenStream out) {
+        int[] accept_type = compiled.accept_type;
+        int state = compiled.start_state;
+        int current_pos = start_pos;
+        int ty = LexerDFA.DEAD;
+        int end = start_pos;
+        while (current_pos < input.length()) {
+            state = compiled.step(state, input.charAt(current_pos));
+            out.steps++;
+            if (state == LexerDFA.DEAD) {
+                break;
+            }
+            current_pos++;
+            if (accept_type[state] != LexerDFA.DEAD && (maximal_munch || ty == LexerDFA.DEAD)) {
+                ty = accept_type[state];
+                end = current_pos;
+            }
+        }
+
+        if (ty == LexerDFA.DEAD) {
+            throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+        }
+        if (!maximal_munch) {
+            end = current_pos;
+        }
+        out.add(ty, start_pos, end);
+        return end;
+    }
+
+    /*
+     * Scan over the fused DFA: a token runs while any automaton can still
+     * move, and its type is the one accepted at the first accepting position.
+     * Scans the tokens that start in [from, to), reading past "to" to finish
+     * the last one. Tokens whose type is set in "drop" are not added to "out".
+     */
+    void scan_first_accept(CharSequence input, int from, int to, boolean[] drop, TokenStream out) {
+        int[] accept_type = compiled.accept_type;
+
+        long steps = 0;
+        int start_pos = from;
+        while (start_pos < to) {
+            int state = compiled.start_state;
+            int current_pos = start_pos;
+            int ty = LexerDFA.DEAD;
+            while (current_pos < input.length()) {
+                state = compiled.step(state, input.charAt(current_pos));
+                steps++;
+                if (state == LexerDFA.DEAD) {
+                    break;
+                }
+                current_pos++;
+                if (ty == LexerDFA.DEAD) {
+                    ty = accept_type[state];
+                }
+            }
+
+            if (ty == LexerDFA.DEAD) {
+                throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+            }
+
+            if (!drop[ty]) {
+                out.add(ty, start_pos, current_pos);
+            }
+            start_pos = current_pos;
+        }
+        out.steps += steps;
+    }
+
+    /*
+     * Maximal-munch scan over the fused DFA of the tokens that start in
+     * [from, to). See the class comment for the linear-time guarantee.
+     */
+    void scan_longest(CharSequence input, int from, int to, boolean[] drop, TokenStream out) {
+        int[] accept_type = compiled.accept_type;
+        int num_states = compiled.num_states;
+
+        //trail[i] is the state after reading input[start_pos, start_pos + i)
+        int[] trail = new int[16];
+        //Dead-end (state, position) pairs, indexed by (pos - failed_base) * num_states + state
+        BitSet failed = null;
+        int failed_base = 0;
+        int failed_end = 0;
+
+        long steps = 0;
+        long backtracks = 0;
+        int start_pos = from;
+        while (start_pos < to) {
+            if (failed != null && start_pos >= failed_end) {
+                //Every recorded dead end lies behind us
+                failed.clear();
+                failed_base = start_pos;
+            }
+
+            int state = compiled.start_state;
+            int current_pos = start_pos;
+            int last_end = -1;
+            int last_ty = LexerDFA.DEAD;
+            trail[0] = state;
+            while (current_pos < input.length()) {
+                if (failed != null && current_pos >= failed_base && current_pos < failed_end
+                        && failed.get((current_pos - failed_base) * num_states + state)) {
+                    break;
+                }
+                state = compiled.step(state, input.charAt(current_pos));
+                steps++;
+                if (state == LexerDFA.DEAD) {
+                    break;
+                }
+                current_pos++;
+                if (current_pos - start_pos >= trail.length) {
+                    trail = Arrays.copyOf(trail, trail.length * 2);
+                }
+                trail[current_pos - start_pos] = state;
+                if (accept_type[state] != LexerDFA.DEAD) {
+                    last_end = current_pos;
+                    last_ty = accept_type[state];
+                }
+            }
+
+            if (last_ty == LexerDFA.DEAD) {
+                throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+            }
+
+            //Nothing read past last_end led to an accept, remember those pairs
+            if (current_pos > last_end) {
+                if (failed == null) {
+                    failed = new BitSet();
+                    failed_base = start_pos;
+                }
+                for (int pos = last_end; pos <= current_pos; pos++) {
+                    failed.set((pos - failed_base) * num_states + trail[pos - start_pos]);
+                }
+                failed_end = Math.max(failed_end, current_pos + 1);
+                backtracks += current_pos - last_end;
+            }
+
+            if (!drop[last_ty]) {
+                out.add(last_ty, start_pos, last_end);
+            }
+            start_pos = last_end;
+        }
+        out.steps += steps;
+        out.backtracks += backtracks;
+    }
+
+    /*
+     * Scans by stepping every automaton separately. Only used when the
+     * automata cannot be fused into a LexerDFA.
+     */
+    TokenList scan_automata(String input) {
 
         TokenList ret = null;
         TokenList ret_tail = null;
@@ -31,6 +450,7 @@ public class LexerImpl implements Lexer {
             boolean has_transitions = true;
 
             EnumMap<TokenType, Boolean> current_accepts;
+            EnumMap<TokenType, Boolean> prev_accepts = null;
 
             while(has_transitions) {
                 has_transitions = false;
@@ -65,7 +485,9 @@ public class LexerImpl implements Lexer {
             }
 
             assert(current_pos > start_pos);
-            assert(has_prev_accept);
+            if(!has_prev_accept) {
+                throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+            }
 
             TokenType new_ty = TokenType.WHITE_SPACE;
             boolean done2 = false;
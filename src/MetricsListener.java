@@ -0,0 +1,48 @@
+/*
+ * Receives measurements from CompilerFrontend runs. Install one with
+ * CompilerFrontend.set_metrics; without one, runs measure nothing and
+ * pay only for a null check.
+ *
+ * Runs on different threads (run_batch, run_file) report to the same
+ * listener at once, so implementations must be thread-safe.
+ */
+public interface MetricsListener {
+    enum Phase {
+        INIT_LEXER,
+        SCAN,
+        REMOVE_WHITESPACE,
+        PARSE
+    }
+
+    /*
+     * One run spent "nanos" nanoseconds in "phase".
+     */
+    void phase(Phase phase, long nanos);
+
+    /*
+     * One scan produced "count" tokens of type "ty". Only called for
+     * types that occurred; skipped types are not counted when the scan
+     * dropped them.
+     */
+    void tokens(TokenType ty, int count);
+
+    /*
+     * One scan took "steps" DFA transitions, counting the one into the
+     * dead state that ends each token. "backtracks" chars were read past
+     * the end of a token and read again for the next one (maximal munch
+     * only).
+     */
+    void automaton_steps(long steps, long backtracks);
+
+    /*
+     * One input was looked up in the frontend's ResultCache, and found
+     * if "hit" is true. A hit skips every phase.
+     */
+    void cache_lookup(boolean hit);
+
+    /*
+     * One call of CompilerFrontend.run allocated "bytes" bytes on its
+     * thread. Not called if the JVM cannot measure allocation.
+     */
+    void bytes_allocated(long bytes);
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/*
+ * The states and transitions of an AutomatonImpl packed into int arrays,
+ * so the automaton can be run without boxing a state or allocating a set.
+ *
+ * States are renumbered 0 .. num_states - 1. Chars are grouped into
+ * classes: two chars share a class when every state has the same targets
+ * on both, so all digits, say, are one class whether they were added one
+ * by one or as a range. The targets of state s on a char of class cls
+ * are targets[offsets[s * num_classes + cls]] up to (not including)
+ * targets[offsets[s * num_classes + cls + 1]], as in a compressed sparse
+ * row matrix. Chars that label no transition have class DEAD.
+ *
+ * A program is never written after it is built, so any number of
+ * automata and threads can run it at once, each with its own two
+ * StateSets.
+ */
+class NFAProgram {
+    static final int DEAD = -1;
+
+    final int num_states;
+    final int num_classes;
+    //ids[s] is the state number s was given in addState or addTransition
+    final int[] ids;
+    //Renumbered state of each original state number
+    final HashMap<Integer, Integer> index;
+    final int[] char_class;
+    final int[] offsets;
+    final int[] targets;
+    //Bit s is set if s is a start state, resp. an accept state
+    final long[] starts;
+    final long[] accepting;
+
+    NFAProgram(HashSet<Integer> start_states, HashSet<Integer> accept_states,
+               HashMap<AutomatonImpl.StateLabelPair, HashSet<Integer>> transitions, ArrayList<AutomatonImpl.Range> ranges) {
+        //Number every state that is mentioned anywhere
+        index = new HashMap<Integer, Integer>();
+        for (int s : start_states) {
+            number(s);
+        }
+        for (int s : accept_states) {
+            number(s);
+        }
+        //Every transition as an edge from src to dst on the chars lo..hi
+        int num_edges = ranges.size();
+        for (HashSet<Integer> t : transitions.values()) {
+            num_edges += t.size();
+        }
+        int[] src = new int[num_edges];
+        int[] dst = new int[num_edges];
+        int[] lo = new int[num_edges];
+        int[] hi = new int[num_edges];
+        int e = 0;
+        for (Map.Entry<AutomatonImpl.StateLabelPair, HashSet<Integer>> entry : transitions.entrySet()) {
+            for (int t : entry.getValue()) {
+                src[e] = number(entry.getKey().state);
+                dst[e] = number(t);
+                lo[e] = entry.getKey().label;
+                hi[e] = entry.getKey().label;
+                e++;
+            }
+        }
+        for (AutomatonImpl.Range r : ranges) {
+            src[e] = number(r.state);
+            dst[e] = number(r.target);
+            lo[e] = r.lo;
+            hi[e] = r.hi;
+            e++;
+        }
+        num_states = index.size();
+        ids = new int[num_states];
+        for (Map.Entry<Integer, Integer> entry : index.entrySet()) {
+            ids[entry.getValue()] = entry.getKey();
+        }
+
+        //The ends of all edges cut the chars into intervals on which nothing changes
+        int[] bounds = new int[2 * num_edges];
+        for (e = 0; e < num_edges; e++) {
+            bounds[2 * e] = lo[e];
+            bounds[2 * e + 1] = hi[e] + 1;
+        }
+        Arrays.sort(bounds);
+        int m = 0;
+        for (int b : bounds) {
+            if (m == 0 || bounds[m - 1] != b) {
+                bounds[m++] = b;
+            }
+        }
+
+        //The signature of an interval is its sorted list of (src, dst) edges; equal signatures share a class
+        ArrayList<ArrayList<Long>> signatures = new ArrayList<ArrayList<Long>>();
+        for (int i = 0; i + 1 < m; i++) {
+            signatures.add(new ArrayList<Long>());
+        }
+        for (e = 0; e < num_edges; e++) {
+            int first = Arrays.binarySearch(bounds, 0, m, lo[e]);
+            int last = Arrays.binarySearch(bounds, 0, m, hi[e] + 1);
+            for (int i = first; i < last; i++) {
+                signatures.get(i).add(((long) src[e] << 32) | dst[e]);
+            }
+        }
+        HashMap<ArrayList<Long>, Integer> classes = new HashMap<ArrayList<Long>, Integer>();
+        ArrayList<ArrayList<Long>> class_edges = new ArrayList<ArrayList<Long>>();
+        char_class = new int[m == 0 ? 0 : bounds[m - 1]];
+        Arrays.fill(char_class, DEAD);
+        for (int i = 0; i + 1 < m; i++) {
+            ArrayList<Long> sig = signatures.get(i);
+            if (sig.isEmpty()) {
+                continue;
+            }
+            Collections.sort(sig);
+            for (int j = sig.size() - 1; j > 0; j--) {
+                if (sig.get(j).equals(sig.get(j - 1))) {
+                    sig.remove(j);
+                }
+            }
+            Integer cls = classes.get(sig);
+            if (cls == null) {
+                cls = class_edges.size();
+                classes.put(sig, cls);
+                class_edges.add(sig);
+            }
+            Arrays.fill(char_class, bounds[i], bounds[i + 1], cls);
+        }
+        num_classes = class_edges.size();
+
+        //Count the targets of every row, then fill them in
+        offsets = new int[num_states * num_classes + 1];
+        for (int cls = 0; cls < num_classes; cls++) {
+            for (long edge : class_edges.get(cls)) {
+                offsets[(int) (edge >>> 32) * num_classes + cls + 1]++;
+            }
+        }
+        for (int r = 0; r < num_states * num_classes; r++) {
+            offsets[r + 1] += offsets[r];
+        }
+        targets = new int[offsets[num_states * num_classes]];
+        int[] fill = Arrays.copyOf(offsets, offsets.length);
+        for (int cls = 0; cls < num_classes; cls++) {
+            for (long edge : class_edges.get(cls)) {
+                targets[fill[(int) (edge >>> 32) * num_classes + cls]++] = (int) edge;
+            }
+        }
+
+        starts = new long[(num_states + 63) >>> 6];
+        for (int s : start_states) {
+            int i = index.get(s);
+            starts[i >>> 6] |= 1L << i;
+        }
+        accepting = new long[(num_states + 63) >>> 6];
+        for (int s : accept_states) {
+            int i = index.get(s);
+            accepting[i >>> 6] |= 1L << i;
+        }
+    }
+
+    private int number(int s) {
+        Integer i = index.get(s);
+        if (i == null) {
+            i = index.size();
+            index.put(s, i);
+        }
+        return i;
+    }
+
+    int classOf(char c) {
+        return c < char_class.length ? char_class[c] : DEAD;
+    }
+
+    boolean isAccepting(int s) {
+        return (accepting[s >>> 6] & (1L << s)) != 0;
+    }
+
+    //Clears "set" and fills it with the start states
+    void start(StateSet set) {
+        set.size = 0;
+        for (int w = 0; w < starts.length; w++) {
+            for (long bits = starts[w]; bits != 0; bits &= bits - 1) {
+                set.add((w << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    //Clears "to" and fills it with the targets of every state of "from" on class cls
+    void step(StateSet from, int cls, StateSet to) {
+        to.size = 0;
+        if (cls == DEAD) {
+            return;
+        }
+        int[] members = from.members;
+        for (int i = 0; i < from.size; i++) {
+            int row = members[i] * num_classes + cls;
+            for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+                to.add(targets[k]);
+            }
+        }
+    }
+
+    boolean accepts(StateSet set) {
+        for (int i = 0; i < set.size; i++) {
+            if (isAccepting(set.members[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasTransitions(StateSet set, int cls) {
+        if (cls == DEAD) {
+            return false;
+        }
+        for (int i = 0; i < set.size; i++) {
+            int row = set.members[i] * num_classes + cls;
+            if (offsets[row] < offsets[row + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A set of renumbered states, stored as a Briggs-Torczon sparse set:
+     * members[0 .. size - 1] lists the states, and s is a member exactly
+     * when where[s] < size and members[where[s]] == s. Adding a state and
+     * testing for one are constant time, clearing is setting size to 0,
+     * and iterating costs the number of members, not the number of states.
+     * Neither array is ever cleared, so a set is reused without any work.
+     */
+    static class StateSet {
+        final int[] members;
+        final int[] where;
+        int size;
+
+        StateSet(int capacity) {
+            members = new int[capacity];
+            where = new int[capacity];
+        }
+
+        boolean contains(int s) {
+            int i = where[s];
+            return i < size && members[i] == s;
+        }
+
+        void add(int s) {
+            if (!contains(s)) {
+                members[size] = s;
+                where[s] = size;
+                size++;
+            }
+        }
+    }
+
+    /*
+     * A set of renumbered states in increasing order, used as the key of
+     * the DFA state that stands for it.
+     */
+    static class Subset {
+        final int[] states;
+        final int hash;
+
+        Subset(int[] states_) {
+            states = states_;
+            hash = Arrays.hashCode(states);
+        }
+
+        static Subset of(StateSet set) {
+            int[] states = Arrays.copyOf(set.members, set.size);
+            Arrays.sort(states);
+            return new Subset(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return Arrays.equals(states, ((Subset) o).states);
+        }
+    }
+}
@@ -1,14 +1,29 @@
 
 public abstract class Parser {
-    TokenList tokens;
+    TokenStream tokens;
     int idx;
+    //Makes the nodes of the SDT actions below
+    ExprFactory factory = ExprFactory.PLAIN;
 
     public Expr parse(TokenList token_list) throws Exception {
-        tokens = token_list;
+        return parse(TokenStream.from_list(token_list));
+    }
+
+    public Expr parse(TokenStream token_stream) throws Exception {
+        tokens = token_stream;
         idx = 0;
+        factory.reset();
         return do_parse();
     }
 
+    /*
+     * Makes later parses build their nodes with "factory_", for example an
+     * InterningExprFactory to share identical subtrees.
+     */
+    public void set_factory(ExprFactory factory_) {
+        factory = factory_;
+    }
+
     /*
      * Implements a recursive-descent parser for the following CFG:
      * 
@@ -22,30 +37,28 @@ public abstract class Parser {
      * AddOp -> MINUS              { $$ = $1; }
      * MulOp -> TIMES              { $$ = $1; }
      * MulOp -> DIV                { $$ = $1; }
+     *
+     * Every "new" in these actions goes through factory.
      */
     public abstract Expr do_parse() throws Exception;
 
+    boolean at_end() {
+        return idx >= tokens.size();
+    }
+
     boolean peek(TokenType t, int k) {
-        TokenList cur = tokens;
-        while(k > 0) {
-            k--;
-            if (cur == null) {
-                return false;
-            }
-            cur = cur.rest;
-        }
-        if (cur == null) {
-            return false;
-        }
-        return cur.elem.ty == t;
+        return idx + k < tokens.size() && tokens.type(idx + k) == t;
     }
 
     Token consume(TokenType t) throws Exception {
-        if (t != tokens.elem.ty) {
-            throw new Exception("Parsing error on token: " + tokens.elem.lexeme);
+        if (at_end()) {
+            throw new Exception("Parsing error: unexpected end of input, expected " + t);
+        }
+        if (t != tokens.type(idx)) {
+            throw new Exception("Parsing error on token: " + tokens.lexeme(idx));
         }
-        Token ret = tokens.elem;
-        tokens = tokens.rest;
+        Token ret = tokens.token(idx);
+        idx++;
         return ret;
     }
 
@@ -21,8 +21,8 @@ public class ParserImpl extends Parser {
         
         //After parsing, we should be at the end of the token list
         //If there are still tokens left, it ,means the input was invalid
-        if (tokens != null) {
-            throw new Exception("Expected end of input, but found token: " + tokens.elem.lexeme);
+        if (!at_end()) {
+            throw new Exception("Expected end of input, but found token: " + tokens.lexeme(idx));
         }
         
         return result;
@@ -33,14 +33,14 @@ public class ParserImpl extends Parser {
         Expr e1 = parseF();
 
         //Now we look at the next token to decide which rule to use
-        if (tokens != null && (peek(TokenType.PLUS, 0) || peek(TokenType.MINUS, 0))) {
+        if (!at_end() && (peek(TokenType.PLUS, 0) || peek(TokenType.MINUS, 0))) {
             Token op = parseAddOp();
             Expr e2 = parseT(); // Recursive call for T
 
             if (op.ty == TokenType.PLUS) {
-                return new PlusExpr(e1, e2);
+                return factory.plus(e1, e2);
             } else {
-                return new MinusExpr(e1, e2);
+                return factory.minus(e1, e2);
             }
         }
         return e1;
@@ -52,28 +52,28 @@ public class ParserImpl extends Parser {
         Expr e1 = parseLit();
         //Now we look at the next token to decide which rule to use
         //We check the next token for a '*' or '/'
-        if (tokens != null && (peek(TokenType.TIMES, 0) || peek(TokenType.DIV, 0))) {
+        if (!at_end() && (peek(TokenType.TIMES, 0) || peek(TokenType.DIV, 0))) {
             Token op = parseMulOp();
             Expr e2 = parseF(); //Recursive call for F
 
             //Apply SDT rule to build the expression tree
             if (op.ty == TokenType.TIMES) {
-                return new TimesExpr(e1, e2);
+                return factory.times(e1, e2);
             } else {
-                return new DivExpr(e1, e2);
+                return factory.div(e1, e2);
             }
         }
         return e1;
     }
     private Expr parseLit() throws Exception {
-        if (tokens == null) {
+        if (at_end()) {
             throw new Exception("Unexpected end of input, expected NUM or LPAREN");
         }
 
         if (peek(TokenType.NUM, 0)) {
             // Rule: Lit -> NUM
             Token num = consume(TokenType.NUM);
-            return new FloatExpr(Float.parseFloat(num.lexeme));
+            return factory.literal(Float.parseFloat(num.lexeme));
         } else if (peek(TokenType.LPAREN, 0)) {
             // Rule: Lit -> LPAREN T RPAREN
             consume(TokenType.LPAREN);
@@ -81,11 +81,11 @@ public class ParserImpl extends Parser {
             consume(TokenType.RPAREN); // This will throw if RPAREN is missing
             return e;
         } else {
-            throw new Exception("Parsing error: expected NUM or LPAREN, found " + tokens.elem.ty);
+            throw new Exception("Parsing error: expected NUM or LPAREN, found " + tokens.type(idx));
         }
     }
     private Token parseAddOp() throws Exception {
-        if (tokens == null) {
+        if (at_end()) {
             throw new Exception("Unexpected end of input, expected PLUS or MINUS");
         }
 
@@ -94,11 +94,11 @@ public class ParserImpl extends Parser {
         } else if (peek(TokenType.MINUS, 0)) {
             return consume(TokenType.MINUS);
         } else {
-            throw new Exception("Parsing error: expected PLUS or MINUS, found " + tokens.elem.ty);
+            throw new Exception("Parsing error: expected PLUS or MINUS, found " + tokens.type(idx));
         }
     }
     private Token parseMulOp() throws Exception {
-        if (tokens == null) {
+        if (at_end()) {
             throw new Exception("Unexpected end of input, expected TIMES or DIV");
         }
         
@@ -107,7 +107,7 @@ public class ParserImpl extends Parser {
         } else if (peek(TokenType.DIV, 0)) {
             return consume(TokenType.DIV);
         } else {
-            throw new Exception("Parsing error: expected TIMES or DIV, found " + tokens.elem.ty);
+            throw new Exception("Parsing error: expected TIMES or DIV, found " + tokens.type(idx));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,424 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded cache from input strings to the Expr that compiling them
+ * returned, for CompilerFrontend.set_cache. An entry weighs as much as
+ * its input is long, since a tree grows with its input, and the entries
+ * together never weigh more than max_weight.
+ *
+ * Keys are spread over segments by hash, and each segment has its own
+ * lock, so threads only wait for each other when they use the same
+ * segment. Each segment keeps its entries in an access-ordered
+ * LinkedHashMap, whose eldest entry is the least recently used. The
+ * weight is not split between segments: they all reserve from one
+ * AtomicLong budget, so an input may weigh up to the whole bound
+ * whichever segment it hashes to. A segment that cannot make enough room
+ * from its own entries lets go of its lock and asks the other segments,
+ * one at a time, to give up theirs; no thread ever holds two locks.
+ *
+ * Under Policy.LRU a new entry gets in unless racing puts keep taking the
+ * room made for it, and least recently used entries make room for it.
+ * Under Policy.TINY_LFU, as in W-TinyLFU, a new entry first goes to its
+ * segment's small LRU window, the windows together taking WINDOW_PERCENT
+ * of the weight.
+ * An entry pushed out of the window only replaces the eldest main entry
+ * if its input was asked for more often. How often is estimated by a
+ * count-min sketch of 4-bit counters that are halved from time to time,
+ * so old popularity fades. A burst of inputs seen once then cannot flush
+ * the inputs that keep coming back.
+ *
+ * Two threads that miss on the same input at once both compile it, and
+ * the second result replaces the first. Cached trees are shared by every
+ * caller. That is safe only because of who fills the cache: just
+ * CompilerFrontend.run and the batch and file workers put trees in it,
+ * and IncrementalParse, the one thing that changes a tree in place
+ * (through BinaryExpr.setE1/setE2), only changes trees its own
+ * TrackingParser built. A tree from run_incremental must never be put in
+ * the cache, and a cached tree must never be handed to IncrementalParse.
+ */
+public class ResultCache {
+    public enum Policy { LRU, TINY_LFU }
+
+    static final int DEFAULT_SEGMENTS = 16;
+    //Share of the weight that is window under TINY_LFU
+    static final int WINDOW_PERCENT = 1;
+    //Sketch rows, each with its own hash of the key
+    static final int SKETCH_DEPTH = 4;
+    static final int MAX_COUNT = 15;
+    static final int[] SEEDS = { 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f, 0x165667b1 };
+
+    /*
+     * Counters summed over all segments. An entry that was pushed out to make
+     * room is an eviction. An entry that was never stored, because it was
+     * less frequent than the entry it would replace or too heavy, is a
+     * rejection.
+     */
+    static class Stats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long rejections;
+        final int entries;
+        final long weight;
+
+        public Stats(long hits_, long misses_, long evictions_, long rejections_, int entries_, long weight_) {
+            hits = hits_;
+            misses = misses_;
+            evictions = evictions_;
+            rejections = rejections_;
+            entries = entries_;
+            weight = weight_;
+        }
+
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " rejections=" + rejections + " entries=" + entries + " weight=" + weight;
+        }
+    }
+
+    static class Cached {
+        final String key;
+        final Expr expr;
+        final int weight;
+
+        Cached(String key_, Expr expr_, int weight_) {
+            key = key_;
+            expr = expr_;
+            weight = weight_;
+        }
+    }
+
+    final Policy policy;
+    final long max_weight;
+    //Weight the main areas of all segments may hold together, and how much they hold
+    final long max_main;
+    final AtomicLong main_used = new AtomicLong();
+    final Segment[] segments;
+    //Where settle starts asking for room, so the same segment is not always emptied first
+    final AtomicInteger hand = new AtomicInteger();
+
+    public ResultCache(long max_weight_, Policy policy_) {
+        this(max_weight_, policy_, DEFAULT_SEGMENTS);
+    }
+
+    public ResultCache(long max_weight_, Policy policy_, int num_segments) {
+        if (max_weight_ < 1) {
+            throw new IllegalArgumentException("A result cache needs a weight of at least 1, got " + max_weight_);
+        }
+        if (num_segments < 1 || Integer.bitCount(num_segments) != 1) {
+            throw new IllegalArgumentException("The number of segments must be a power of 2, got " + num_segments);
+        }
+        policy = policy_;
+        max_weight = max_weight_;
+        segments = new Segment[num_segments];
+        boolean tiny_lfu = policy == Policy.TINY_LFU;
+        long window = tiny_lfu ? max_weight * WINDOW_PERCENT / 100 / num_segments : 0;
+        max_main = max_weight - window * num_segments;
+        for (int i = 0; i < num_segments; i++) {
+            segments[i] = new Segment(window, max_weight / num_segments, tiny_lfu, main_used, max_main);
+        }
+    }
+
+    static int weight(String input) {
+        return Math.max(1, input.length());
+    }
+
+    //Spreads the high bits of the String hash, which the segment mask would ignore
+    static int spread(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    Segment segment_of(int hash) {
+        return segments[(hash >>> 16) & (segments.length - 1)];
+    }
+
+    //The cached result for "input", or null
+    public Expr get(String input) {
+        int hash = spread(input.hashCode());
+        return segment_of(hash).get(input, hash);
+    }
+
+    public void put(String input, Expr e) {
+        int hash = spread(input.hashCode());
+        Segment home = segment_of(hash);
+        List<Cached> homeless = home.put(input, hash, new Cached(input, e, weight(input)));
+        if (homeless != null) {
+            for (Cached c : homeless) {
+                settle(home, c);
+            }
+        }
+    }
+
+    /*
+     * Frees room in other segments for "c", which its home segment could
+     * not make room for from its own entries, then offers it to "home"
+     * again. Under TINY_LFU only entries rarer than "c" are given up.
+     */
+    void settle(Segment home, Cached c) {
+        int hash = spread(c.key.hashCode());
+        int freq = home.frequency_of(hash);
+        long need = main_used.get() + c.weight - max_main;
+        int start = hand.getAndIncrement();
+        for (int i = 0; i < segments.length && need > 0; i++) {
+            need -= segments[(start + i) & (segments.length - 1)].make_room(need, freq);
+        }
+        home.readmit(c, hash);
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    public Stats stats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long rejections = 0;
+        int entries = 0;
+        long weight = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                hits += s.hits;
+                misses += s.misses;
+                evictions += s.evictions;
+                rejections += s.rejections;
+                entries += s.window.size() + s.main.size();
+                weight += s.window_weight + s.main_weight;
+            }
+        }
+        return new Stats(hits, misses, evictions, rejections, entries, weight);
+    }
+
+    /*
+     * One lock's worth of the cache. All fields but the shared budget are
+     * guarded by the segment itself.
+     */
+    static class Segment {
+        final LinkedHashMap<String, Cached> window = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+        final LinkedHashMap<String, Cached> main = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+        final long max_window;
+        //Shared with every other segment; main_weight is this segment's part of main_used
+        final AtomicLong main_used;
+        final long max_main;
+        long window_weight;
+        long main_weight;
+
+        //Count-min sketch: row r, column c is counts[r * width + c]; null under LRU
+        final byte[] counts;
+        final int width;
+        int additions;
+
+        long hits;
+        long misses;
+        long evictions;
+        long rejections;
+
+        //"share" is the weight this segment holds when keys spread evenly
+        Segment(long max_window_, long share, boolean tiny_lfu, AtomicLong main_used_, long max_main_) {
+            max_window = max_window_;
+            main_used = main_used_;
+            max_main = max_main_;
+            if (tiny_lfu) {
+                //About one column per entry, taking 16 chars as a typical input
+                long entries = Math.max(16, Math.min(1 << 16, share / 16));
+                width = Integer.highestOneBit((int) entries - 1) << 1;
+                counts = new byte[SKETCH_DEPTH * width];
+            } else {
+                width = 0;
+                counts = null;
+            }
+        }
+
+        synchronized Expr get(String input, int hash) {
+            record(hash);
+            Cached e = window.get(input);
+            if (e == null) {
+                e = main.get(input);
+            }
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return e.expr;
+        }
+
+        /*
+         * Stores "e", and returns the entries that need room from other
+         * segments to get into main, or null if there are none.
+         */
+        synchronized List<Cached> put(String input, int hash, Cached e) {
+            Cached old = window.remove(input);
+            if (old != null) {
+                window_weight -= old.weight;
+            }
+            old = main.remove(input);
+            if (old != null) {
+                release(old.weight);
+            }
+            if (counts == null) {
+                return admit(e, hash) ? null : List.of(e);
+            }
+            List<Cached> homeless = null;
+            window.put(input, e);
+            window_weight += e.weight;
+            while (window_weight > max_window) {
+                Iterator<Cached> eldest = window.values().iterator();
+                Cached candidate = eldest.next();
+                eldest.remove();
+                window_weight -= candidate.weight;
+                if (!admit(candidate, spread(candidate.key.hashCode()))) {
+                    if (homeless == null) {
+                        homeless = new ArrayList<Cached>();
+                    }
+                    homeless.add(candidate);
+                }
+            }
+            return homeless;
+        }
+
+        /*
+         * Moves "e" into main if there is room in the budget, making room
+         * from the least recently used end of this segment. Under TINY_LFU
+         * every entry that would make room must be rarer than "e", or "e"
+         * is dropped instead. Returns false, leaving main as it was, if
+         * this segment's entries are not enough to make room.
+         */
+        boolean admit(Cached e, int hash) {
+            if (e.weight > max_main) {
+                rejections++;
+                return true;
+            }
+            int freq = counts == null ? 0 : frequency(hash);
+            while (true) {
+                long need = main_used.get() + e.weight - max_main;
+                Iterator<Cached> eldest = main.values().iterator();
+                long room = 0;
+                //Check first, so a rejected entry leaves main as it was
+                while (room < need) {
+                    if (!eldest.hasNext()) {
+                        return false;
+                    }
+                    Cached victim = eldest.next();
+                    if (counts != null && freq <= frequency(spread(victim.key.hashCode()))) {
+                        rejections++;
+                        return true;
+                    }
+                    room += victim.weight;
+                }
+                eldest = main.values().iterator();
+                for (long freed = 0; freed < need; ) {
+                    Cached victim = eldest.next();
+                    eldest.remove();
+                    release(victim.weight);
+                    freed += victim.weight;
+                    evictions++;
+                }
+                if (reserve(e.weight)) {
+                    main.put(e.key, e);
+                    main_weight += e.weight;
+                    return true;
+                }
+                //Another segment took the room meanwhile
+            }
+        }
+
+        //admit for an entry settle made room for; a newer put of the same key wins
+        synchronized void readmit(Cached e, int hash) {
+            if (window.containsKey(e.key) || main.containsKey(e.key)) {
+                return;
+            }
+            if (!admit(e, hash)) {
+                rejections++;
+            }
+        }
+
+        /*
+         * Evicts least recently used entries until "need" weight is freed,
+         * this segment is empty, or, if "freq" counts, the eldest entry is
+         * not rarer than "freq". Returns the weight freed.
+         */
+        synchronized long make_room(long need, int freq) {
+            long freed = 0;
+            Iterator<Cached> eldest = main.values().iterator();
+            while (freed < need && eldest.hasNext()) {
+                Cached victim = eldest.next();
+                if (counts != null && freq <= frequency(spread(victim.key.hashCode()))) {
+                    break;
+                }
+                eldest.remove();
+                release(victim.weight);
+                freed += victim.weight;
+                evictions++;
+            }
+            return freed;
+        }
+
+        synchronized int frequency_of(int hash) {
+            return counts == null ? 0 : frequency(hash);
+        }
+
+        //Takes "weight" from the shared budget if it is there
+        boolean reserve(long weight) {
+            long used;
+            do {
+                used = main_used.get();
+                if (used + weight > max_main) {
+                    return false;
+                }
+            } while (!main_used.compareAndSet(used, used + weight));
+            return true;
+        }
+
+        void release(long weight) {
+            main_weight -= weight;
+            main_used.addAndGet(-weight);
+        }
+
+        //Counts one more request for the key with "hash", halving every counter once in a while
+        void record(int hash) {
+            if (counts == null) {
+                return;
+            }
+            for (int r = 0; r < SKETCH_DEPTH; r++) {
+                int i = r * width + column(hash, r);
+                if (counts[i] < MAX_COUNT) {
+                    counts[i]++;
+                }
+            }
+            if (++additions == 10 * width) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int ret = MAX_COUNT;
+            for (int r = 0; r < SKETCH_DEPTH; r++) {
+                ret = Math.min(ret, counts[r * width + column(hash, r)]);
+            }
+            return ret;
+        }
+
+        int column(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 15)) & (width - 1);
+        }
+
+        synchronized void clear() {
+            window.clear();
+            main.clear();
+            window_weight = 0;
+            release(main_weight);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+public class TestPart5 {
+    public static void main(String[] args) throws Exception {
+        Tests.test_dfa();
+        Tests.test_nfa_simulation();
+        Tests.test_lazy_dfa();
+        Tests.test_minimize();
+        Tests.test_char_classes();
+        Tests.test_maximal_munch();
+        Tests.test_token_stream();
+        Tests.test_skip_whitespace();
+        Tests.test_iterative_parser();
+        Tests.test_ll1_parser();
+        Tests.test_eval();
+        Tests.test_arena();
+        Tests.test_hash_consing();
+        Tests.test_constant_folding();
+        Tests.test_result_cache();
+        Tests.test_shared_lexer();
+        Tests.test_cursors();
+        Tests.test_batch();
+        Tests.test_parallel_lexer();
+        Tests.test_token_reader();
+        Tests.test_run_file();
+        Tests.test_incremental();
+        Tests.test_metrics();
+    }
+}
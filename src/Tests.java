@@ -1,3 +1,15 @@
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 public class Tests {
     public static void applyAll(String s, Automaton a) {
         for(int i = 0; i < s.length(); i++) {
@@ -85,6 +97,179 @@ public class Tests {
         System.out.println("a_num accepts \"124.3f\" (should be false): " + a_num.accepts());
     }
 
+    public static void test_dfa() {
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(1, false, true);
+        nfa.addTransition(0, 'a', 1);
+        nfa.addState(2, false, false);
+        nfa.addTransition(0, 'a', 2);
+        nfa.addState(3, false, false);
+        nfa.addTransition(2, 'b', 3);
+        nfa.addState(4, false, true);
+        nfa.addTransition(3, 'c', 4);
+
+        Automaton d = nfa.determinize();
+        d.reset();
+        System.out.println("dfa accepts empty string (should be false): " + d.accepts());
+        d.apply('a');
+        System.out.println("dfa accepts 'a' (should be true): " + d.accepts());
+        d.apply('b');
+        System.out.println("dfa accepts 'ab' (should be false): " + d.accepts());
+        System.out.println("dfa has transition to 'c' (should be true): " + d.hasTransitions('c'));
+        d.apply('c');
+        System.out.println("dfa accepts 'abc' (should be true): " + d.accepts());
+        System.out.println("dfa has transition to 'z' (should be false): " + d.hasTransitions('z'));
+        System.out.println("dfa has transition to '~' (should be false): " + d.hasTransitions('~'));
+        d.apply('a');
+        System.out.println("dfa accepts 'abca' (should be false): " + d.accepts());
+        d.reset();
+        applyAll("a", d);
+        System.out.println("dfa accepts 'a' after reset (should be true): " + d.accepts());
+    }
+
+    public static void test_nfa_simulation() {
+        //(a|b)*a(a|b)^20: any DFA for it needs 2^21 states, the NFA has 22
+        int k = 20;
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(k + 1, false, true);
+        nfa.addTransition(0, 'a', 0);
+        nfa.addTransition(0, 'b', 0);
+        nfa.addTransition(0, 'a', 1);
+        for (int i = 1; i <= k; i++) {
+            nfa.addTransition(i, 'a', i + 1);
+            nfa.addTransition(i, 'b', i + 1);
+        }
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 999; i++) {
+            input.append(i % 3 == 0 ? 'a' : 'b');
+        }
+        nfa.reset();
+        applyAll(input.toString(), nfa);
+        System.out.println("nfa accepts input with 'a' 21 from the end (should be true): " + nfa.accepts());
+        nfa.apply('b');
+        System.out.println("nfa accepts input with 'b' 21 from the end (should be false): " + nfa.accepts());
+        System.out.println("nfa has transition to 'c' (should be false): " + nfa.hasTransitions('c'));
+
+        //States added during a run are picked up by the next apply
+        nfa.reset();
+        nfa.apply('a');
+        nfa.addState(100, false, true);
+        nfa.addTransition(1, 'c', 100);
+        System.out.println("nfa has transition to 'c' (should be true): " + nfa.hasTransitions('c'));
+        nfa.apply('c');
+        System.out.println("nfa accepts 'ac' (should be true): " + nfa.accepts());
+    }
+
+    public static void test_lazy_dfa() {
+        //Same NFA as in test_nfa_simulation, with room for only 64 of its 2^21 DFA states
+        int k = 20;
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(k + 1, false, true);
+        nfa.addTransition(0, 'a', 0);
+        nfa.addTransition(0, 'b', 0);
+        nfa.addTransition(0, 'a', 1);
+        for (int i = 1; i <= k; i++) {
+            nfa.addTransition(i, 'a', i + 1);
+            nfa.addTransition(i, 'b', i + 1);
+        }
+        nfa.freeze().lazy(64);
+
+        //A periodic input visits few DFA states, so nearly every step is a cache hit
+        StringBuilder hot = new StringBuilder();
+        for (int i = 0; i < 999; i++) {
+            hot.append(i % 3 == 0 ? 'a' : 'b');
+        }
+        nfa.reset();
+        applyAll(hot.toString(), nfa);
+        System.out.println("lazy dfa accepts periodic input (should be true): " + nfa.accepts());
+        System.out.println("lazy dfa on periodic input: " + nfa.lazyStats());
+
+        //An aperiodic one keeps finding new states, so the cache thrashes and the run falls back to the NFA
+        StringBuilder cold = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            cold.append(Integer.bitCount(i * 7919) % 2 == 0 ? 'a' : 'b');
+        }
+        AutomatonImpl c = nfa.cursor();
+        c.reset();
+        applyAll(cold.toString(), c);
+        c.apply('b');
+        System.out.println("lazy dfa cursor accepts aperiodic input (should be true): " + c.accepts());
+        System.out.println("lazy dfa on aperiodic input: " + c.lazyStats());
+        System.out.println("lazy dfa cursor has transition to 'b' (should be true): " + c.hasTransitions('b'));
+
+        AutomatonImpl unfrozen = new AutomatonImpl();
+        try {
+            unfrozen.lazy(64);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    public static void test_minimize() {
+        //Two accepting states that behave the same should merge
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(1, false, true);
+        nfa.addState(2, false, true);
+        nfa.addTransition(0, 'a', 1);
+        nfa.addTransition(0, 'b', 2);
+        nfa.addTransition(1, 'a', 1);
+        nfa.addTransition(2, 'a', 2);
+
+        DFAImpl dfa = nfa.determinize();
+        DFAImpl min = dfa.minimize();
+        System.out.println("before: " + dfa.stats());
+        System.out.println("after: " + min.stats());
+        min.reset();
+        applyAll("baa", min);
+        System.out.println("min accepts 'baa' (should be true): " + min.accepts());
+        System.out.println("min has transition to 'b' (should be false): " + min.hasTransitions('b'));
+
+        CompilerFrontendImpl front = new CompilerFrontendImpl();
+        front.init_lexer();
+        System.out.println("NUM before: " + CompilerFrontendImpl.determinized_stats().get(TokenType.NUM));
+        System.out.println("NUM after: " + CompilerFrontendImpl.minimized_stats().get(TokenType.NUM));
+        System.out.println("WHITE_SPACE before: " + CompilerFrontendImpl.determinized_stats().get(TokenType.WHITE_SPACE));
+        System.out.println("WHITE_SPACE after: " + CompilerFrontendImpl.minimized_stats().get(TokenType.WHITE_SPACE));
+    }
+
+    public static void test_cursors() {
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(1, false, true);
+        nfa.addTransition(0, 'a', 1);
+        nfa.addTransition(1, 'a', 1);
+        nfa.freeze();
+
+        Automaton c1 = nfa.cursor();
+        Automaton c2 = nfa.cursor();
+        c1.apply('a');
+        System.out.println("cursor 1 accepts 'a' (should be true): " + c1.accepts());
+        System.out.println("cursor 2 accepts empty string (should be false): " + c2.accepts());
+        try {
+            nfa.addState(2, false, false);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+
+        DFAImpl dfa = nfa.determinize();
+        DFAImpl d1 = dfa.cursor();
+        d1.apply('a');
+        System.out.println("dfa cursor accepts 'a' (should be true): " + d1.accepts() + ", original (should be false): " + dfa.accepts());
+
+        CompilerFrontend front = new CompilerFrontendImpl();
+        front.init_lexer();
+        try {
+            front.lex.add_automaton(TokenType.NUM, nfa);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     public static void test_lexer1() {
         // A test lexer that recognizes integers:
         Automaton a_num = new AutomatonImpl();
@@ -147,6 +332,62 @@ public class Tests {
 
     }
 
+    public static void test_char_classes() {
+        //[a-z] except that 'q' also leads to state 2
+        AutomatonImpl nfa = new AutomatonImpl();
+        nfa.addState(0, true, false);
+        nfa.addState(1, false, true);
+        nfa.addState(2, false, true);
+        nfa.addTransition(0, 'a', 'z', 1);
+        nfa.addTransition(0, 'q', 2);
+        nfa.addTransition(2, '0', '9', 2);
+        DFAImpl d = nfa.determinize();
+        System.out.println("range dfa columns (should be 3): " + d.num_classes);
+        d.reset();
+        applyAll("q42", d);
+        System.out.println("range dfa accepts 'q42' (should be true): " + d.accepts());
+        d.reset();
+        applyAll("m4", d);
+        System.out.println("range dfa accepts 'm4' (should be false): " + d.accepts());
+        System.out.println("range dfa has transition to '{' (should be false): " + d.hasTransitions('{'));
+        try {
+            nfa.addTransition(0, 'z', 'a', 1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+
+        //Digits share a column, and so do the four whitespace chars
+        LexerImpl lex = CompilerFrontendImpl.build_lexer();
+        lex.compile();
+        System.out.println("lexer columns: " + lex.compiled.num_classes + ", states: " + lex.compiled.num_states);
+    }
+
+    public static void test_maximal_munch() {
+        //PLUS matches "a", MINUS matches "aab"
+        Lexer[] lexers = { new LexerImpl(), new LexerImpl(true) };
+        for (Lexer lexer : lexers) {
+            Automaton a_plus = new AutomatonImpl();
+            a_plus.addState(0, true, false);
+            a_plus.addState(1, false, true);
+            a_plus.addTransition(0, 'a', 1);
+
+            Automaton a_minus = new AutomatonImpl();
+            a_minus.addState(0, true, false);
+            a_minus.addState(1, false, false);
+            a_minus.addState(2, false, false);
+            a_minus.addState(3, false, true);
+            a_minus.addTransition(0, 'a', 1);
+            a_minus.addTransition(1, 'a', 2);
+            a_minus.addTransition(2, 'b', 3);
+
+            lexer.add_automaton(TokenType.PLUS, a_plus);
+            lexer.add_automaton(TokenType.MINUS, a_minus);
+        }
+        System.out.println("Lexing \"aaaab\" without maximal munch: " + lexers[0].scan("aaaab"));
+        System.out.println("Lexing \"aaaab\" with maximal munch: " + lexers[1].scan("aaaab"));
+        System.out.println("Lexing \"aaaa\" with maximal munch: " + lexers[1].scan("aaaa"));
+    }
+
     static TokenList test_lexer(String input) {
         CompilerFrontend front = new CompilerFrontendImpl(true);
         return front.run_lexer(input);
@@ -158,6 +399,675 @@ public class Tests {
         System.out.println(test_lexer("1.0 + 2.0 - 3.0 + 4.0"));
     }
 
+    public static void test_token_stream() {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        front.init_lexer();
+        TokenStream tokens = front.lex.scan_stream("1.0 + (2.5)");
+        System.out.println("stream: " + tokens);
+        System.out.println("without whitespace: " + front.removeWhitespace(tokens));
+        System.out.println("token 5 (should be 2.5): " + tokens.lexeme(5) + " at [" + tokens.start(5) + ", " + tokens.end(5) + ")");
+
+        //Long token lists must not overflow the stack
+        StringBuilder input = new StringBuilder("1.0");
+        for (int i = 0; i < 100000; i++) {
+            input.append("+1.0");
+        }
+        TokenList lst = front.lex.scan(input.toString());
+        System.out.println("long list length (should be 200001): " + lst.length());
+        System.out.println("long list text length (should be 2300012): " + lst.toString().length());
+
+        //A Lexer that only has the original methods gets scan_stream from scan
+        Lexer old = new Lexer() {
+            public void add_automaton(TokenType ty, Automaton a) {
+                front.lex.add_automaton(ty, a);
+            }
+
+            public TokenList scan(String s) {
+                return front.lex.scan(s);
+            }
+        };
+        System.out.println("default scan_stream: " + old.scan_stream("1.0 + (2.5)"));
+        try {
+            old.add_automaton(TokenType.WHITE_SPACE, null, true);
+        } catch (UnsupportedOperationException e) {
+            System.out.println("default add_automaton cannot skip (should be true): true");
+        }
+    }
+
+    public static void test_skip_whitespace() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        front.init_lexer();
+        System.out.println("skipping whitespace: " + front.lex.scan_stream(" 1.0 +\n\t2.0 ", false));
+        System.out.println("keeping whitespace: " + front.lex.scan_stream(" 1.0 +\n\t2.0 ", true));
+        System.out.println("run without debug: " + front.run("  ( 1.0 + 2.0 ) * 3.0  "));
+
+        StringBuilder input = new StringBuilder("1.0");
+        for (int i = 0; i < 100000; i++) {
+            input.append(" + 1.0");
+        }
+        TokenList lst = front.removeWhitespace(front.lex.scan(input.toString()));
+        System.out.println("long list without whitespace (should be 200001): " + lst.length());
+    }
+
+    public static void test_iterative_parser() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        String input = "100.0 + .02 -032.1* (   0.2 / 3.5) /\n\t 4.05";
+        System.out.println("recursive: " + new ParserImpl().parse(front.removeWhitespace(front.run_lexer(input))));
+        System.out.println("iterative: " + new IterativeParserImpl().parse(front.removeWhitespace(front.run_lexer(input))));
+
+        //A long chain and deep nesting must not overflow the stack
+        StringBuilder chain = new StringBuilder("1.0");
+        StringBuilder nested = new StringBuilder("1.0");
+        for (int i = 0; i < 300000; i++) {
+            chain.append(i % 2 == 0 ? " + 2.0 * 3.0" : " - 1.0");
+        }
+        for (int i = 0; i < 100000; i++) {
+            nested.insert(0, "(").append(" / 2.0)");
+        }
+        Expr e = front.run(chain.toString());
+        int length = 0;
+        while (e instanceof BinaryExpr) {
+            e = ((BinaryExpr) e).getE2();
+            length++;
+        }
+        System.out.println("chain length (should be 300000): " + length);
+        e = front.run(nested.toString());
+        int depth = 0;
+        while (e instanceof BinaryExpr) {
+            e = ((BinaryExpr) e).getE1();
+            depth++;
+        }
+        System.out.println("nesting depth (should be 100000): " + depth);
+
+        try {
+            front.run("(1.0 + 2.0");
+        } catch (Exception ex) {
+            System.out.println("Parsing Failed");
+        }
+    }
+
+    public static void test_ll1_parser() throws Exception {
+        System.out.print("factored grammar:\n" + LL1ParserImpl.grammar);
+
+        CompilerFrontend front = new CompilerFrontendImpl();
+        front.parse = new LL1ParserImpl();
+        System.out.println("ll1: " + front.run("100.0 + .02 -032.1* (   0.2 / 3.5) /\n\t 4.05"));
+        try {
+            front.run("(1.0 - 2.0 + 3.0");
+        } catch (Exception e) {
+            System.out.println("Parsing Failed");
+        }
+
+        //Errors name terminals, as those of the iterative parser do
+        CompilerFrontend iterative = new CompilerFrontendImpl();
+        String[] bad = { "1.0 1.0", "1.0 +", "", "()", "(1.0 2.0", "(1.0 * 2.0", "1.0 * )" };
+        for (String input : bad) {
+            String ll1 = null;
+            String expected = null;
+            try {
+                front.run(input);
+            } catch (Exception e) {
+                ll1 = e.getMessage();
+            }
+            try {
+                iterative.run(input);
+            } catch (Exception e) {
+                expected = e.getMessage();
+            }
+            System.out.println("\"" + input + "\": " + ll1 + " (same as iterative: " + ll1.equals(expected) + ")");
+        }
+
+        try {
+            new Grammar("E -> E PLUS NUM\nE -> NUM\n");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    public static void test_eval() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        String[] inputs = { "1.0 + 2.0 * 3.0", "8.0 / 4.0 / 2.0", "1.0 - 2.0 + 3.0 + 4.0", "100.0 + .02 -032.1* (   0.2 / 3.5) /\n\t 4.05" };
+        for (String input : inputs) {
+            Expr e = front.run(input);
+            CompiledExpr c = CompiledExpr.compile(e);
+            System.out.println(e + " = " + e.eval() + " (tree), " + c.eval() + " (compiled, stack " + c.max_stack + ")");
+        }
+
+        StringBuilder chain = new StringBuilder("1.0");
+        for (int i = 0; i < 100000; i++) {
+            chain.append(" + 1.0");
+        }
+        CompiledExpr c = CompiledExpr.compile(front.run(chain.toString()));
+        System.out.println("long chain = " + c.eval(new float[c.max_stack]) + " (stack " + c.max_stack + ")");
+        System.out.println("run_eval: " + front.run_eval("(1.5 + 2.5) * 2.0"));
+    }
+
+    public static void test_arena() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        ExprArena arena = new ExprArena(4);
+        String input = "1.5 * (2.0 - 0.25) / 3.0 + 4.0";
+        int root = front.run_arena(input, arena);
+        System.out.println("arena: " + arena.toString(root));
+        System.out.println("arena matches Expr.toString (should be true): " + arena.toString().equals(front.run(input).toString()));
+        System.out.println("arena eval: " + arena.eval(root) + ", nodes: " + arena.size());
+        System.out.println("arena to_expr: " + arena.to_expr());
+
+        //The arrays grown for a long input are kept for the next one
+        StringBuilder chain = new StringBuilder("0.5");
+        for (int i = 0; i < 1000; i++) {
+            chain.append(" - 0.001");
+        }
+        front.run_arena(chain.toString(), arena);
+        int[] left = arena.left;
+        front.run_arena(input, arena);
+        front.run_arena(chain.toString(), arena);
+        System.out.println("arena reused its arrays (should be true): " + (arena.left == left) + ", nodes: " + arena.size());
+
+        try {
+            front.run_arena("1.0 + (2.0", arena);
+        } catch (Exception e) {
+            System.out.println(e.getMessage() + ", root: " + arena.root());
+        }
+    }
+
+    public static void test_hash_consing() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        String input = "(1.0 * 2.0) + (1.0 * 2.0) - (1.0 * 2.0) / 1.0";
+        String plain = front.run(input).toString();
+        front.set_sharing(true);
+        BinaryExpr e = (BinaryExpr) front.run(input);
+        InterningExprFactory factory = (InterningExprFactory) front.parse.factory;
+        System.out.println(e);
+        System.out.println("same tree as without sharing (should be true): " + e.toString().equals(plain));
+        BinaryExpr rest = (BinaryExpr) e.getE2();
+        System.out.println("repeated subtree is one node (should be true): " + (e.getE1() == rest.getE1()));
+        System.out.println("nodes: " + factory.size() + ", hits: " + factory.hits());
+
+        //The other parsers share the same way
+        Parser[] parsers = { new IterativeParserImpl(), new LL1ParserImpl() };
+        for (Parser p : parsers) {
+            InterningExprFactory f = new InterningExprFactory();
+            p.set_factory(f);
+            BinaryExpr pe = (BinaryExpr) p.parse(front.lex.scan_stream(input).without(TokenType.WHITE_SPACE));
+            System.out.println(p.getClass().getName() + " shares (should be true): " + (pe.toString().equals(plain) && pe.getE1() == ((BinaryExpr) pe.getE2()).getE1()) + ", nodes: " + f.size());
+        }
+
+        //0.0 and -0.0 print differently, so they are different literals
+        InterningExprFactory f = new InterningExprFactory();
+        System.out.println("0.0 and -0.0 apart (should be true): " + (f.literal(0.0f) != f.literal(-0.0f)));
+
+        //Each level doubles the tree but adds one node to the DAG
+        Expr x = f.literal(1.0f);
+        for (int i = 0; i < 100; i++) {
+            x = f.plus(x, x);
+        }
+        System.out.println("2^100 by eval_shared: " + InterningExprFactory.eval_shared(x) + ", nodes: " + f.size());
+        System.out.println("eval_shared agrees with eval (should be true): " + (InterningExprFactory.eval_shared(e) == e.eval()));
+
+        //A small parse after a large one does not keep (or clear) the large table
+        Parser big = new IterativeParserImpl();
+        InterningExprFactory bf = new InterningExprFactory();
+        big.set_factory(bf);
+        StringBuilder sb = new StringBuilder("0.0");
+        for (int i = 1; i < 10000; i++) {
+            sb.append(" + ").append(i).append(".0");
+        }
+        big.parse(front.lex.scan_stream(sb.toString()).without(TokenType.WHITE_SPACE));
+        int large = bf.capacity();
+        big.parse(front.lex.scan_stream(input).without(TokenType.WHITE_SPACE));
+        big.parse(front.lex.scan_stream(input).without(TokenType.WHITE_SPACE));
+        System.out.println("table shrinks after a large parse (should be true): " + (bf.capacity() < large && bf.capacity() == InterningExprFactory.MIN_CAPACITY));
+
+        IncrementalParse doc = front.run_incremental(input);
+        try {
+            doc.parser.set_factory(new InterningExprFactory());
+        } catch (IllegalStateException ex) {
+            System.out.println(ex.getMessage());
+        }
+        front.set_sharing(false);
+        System.out.println("sharing off (should be false): " + (((BinaryExpr) front.run(input)).getE1() == ((BinaryExpr) ((BinaryExpr) front.run(input)).getE2()).getE1()));
+    }
+
+    public static void test_constant_folding() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        String input = "(2.0 * 1.0) - 0.0 + 1.0 * (3.0 / 1.0 - 0.5) * 0.0";
+        Expr e = front.run(input);
+        System.out.println(e);
+        System.out.println("identities: " + ExprOptimizer.IDENTITIES.optimize(e));
+        Expr folded = ExprOptimizer.FOLD.optimize(e);
+        System.out.println("folded: " + folded + " (should be " + e.eval() + ")");
+
+        //x + 0.0 is not an identity: it would turn -0.0 into 0.0
+        InterningExprFactory f = new InterningExprFactory();
+        Expr neg = f.plus(f.times(f.literal(-0.0f), f.literal(2.0f)), f.literal(0.0f));
+        System.out.println("x + 0.0 kept: " + ExprOptimizer.IDENTITIES.optimize(neg) + " = " + ExprOptimizer.FOLD.optimize(neg) + " (should be " + neg.eval() + ")");
+
+        //The folded bits are the evaluated bits, NaN and infinities included
+        String[] special = { "0.0 / 0.0", "1.0 / 0.0 - 1.0 / 0.0", "1.0 / (0.0 - 1.0 / 0.0)", "3.0 * 0.1 - 0.3" };
+        for (String s : special) {
+            Expr x = front.run(s);
+            float v = ((FloatExpr) ExprOptimizer.FOLD.optimize(x)).getLiteral();
+            System.out.println(s + " folds to " + v + " (should be " + x.eval() + "): " + (Float.floatToIntBits(v) == Float.floatToIntBits(x.eval())));
+        }
+
+        //A DAG is folded one node at a time however large the tree it stands for
+        Expr x = f.literal(1.0f);
+        for (int i = 0; i < 100; i++) {
+            x = f.plus(x, f.times(x, f.literal(1.0f)));
+        }
+        System.out.println("folded DAG: " + ExprOptimizer.FOLD.optimize(x));
+
+        //A deep chain needs no deep Java stack
+        StringBuilder chain = new StringBuilder("0.5");
+        for (int i = 0; i < 100000; i++) {
+            chain.append(" / 1.0");
+        }
+        Expr deep = new IterativeParserImpl().parse(front.lex.scan_stream(chain, false));
+        System.out.println("100000 divisions by 1.0: " + ExprOptimizer.IDENTITIES.optimize(deep));
+
+        front.set_optimizer(ExprOptimizer.FOLD);
+        System.out.println("run with FOLD: " + front.run(input) + ", batch: " + front.run_batch(java.util.Arrays.asList(input, "1.0 +"), true));
+        front.set_optimizer(null);
+    }
+
+    public static void test_result_cache() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        //One segment, so the eviction order is easy to follow; every input below weighs 9
+        ResultCache lru = new ResultCache(30, ResultCache.Policy.LRU, 1);
+        front.set_cache(lru);
+        Expr first = front.run("1.0 + 2.0");
+        System.out.println("hit returns the cached tree (should be true): " + (front.run("1.0 + 2.0") == first));
+        front.run("2.0 + 3.0");
+        front.run("3.0 + 4.0");
+        front.run("1.0 + 2.0");
+        front.run("4.0 + 5.0");
+        System.out.println("least recently used went first (should be false): " + (lru.get("2.0 + 3.0") != null));
+        System.out.println("LRU: " + lru.stats());
+
+        //Inputs heavier than the whole cache are compiled but not kept
+        StringBuilder heavy = new StringBuilder("0.5");
+        for (int i = 0; i < 10; i++) {
+            heavy.append(" + 0.5");
+        }
+        front.run(heavy.toString());
+        System.out.println("heavy input kept (should be false): " + (lru.get(heavy.toString()) != null));
+
+        //The bound is on the whole cache, not on each of its segments
+        ResultCache roomy = new ResultCache(1000, ResultCache.Policy.LRU);
+        front.set_cache(roomy);
+        StringBuilder long_input = new StringBuilder("0.5");
+        while (long_input.length() < 105) {
+            long_input.append(" + 0.5");
+        }
+        front.run(long_input.toString());
+        System.out.println(long_input.length() + "-char input kept in a cache of 1000 (should be true): " + (roomy.get(long_input.toString()) != null));
+        ResultCache tiny = new ResultCache(8, ResultCache.Policy.LRU);
+        front.set_cache(tiny);
+        long most = 0;
+        for (int i = 0; i < 200; i++) {
+            front.run(i % 3 == 0 ? i + ".0+1.0" : i + ".0");
+            most = Math.max(most, tiny.stats().weight);
+        }
+        System.out.println("cache of 8 never held more than 8 (should be true): " + (most <= 8) + ", " + tiny.stats());
+
+        //A burst of one-off inputs flushes a popular input from LRU but not from TINY_LFU
+        for (ResultCache.Policy policy : ResultCache.Policy.values()) {
+            ResultCache cache = new ResultCache(3000, policy, 1);
+            front.set_cache(cache);
+            for (int i = 0; i < 20; i++) {
+                front.run("1.0 * 2.0");
+            }
+            for (int i = 0; i < 1000; i++) {
+                front.run(i + ".0 * 2.0");
+            }
+            System.out.println(policy + " kept the popular input: " + (cache.get("1.0 * 2.0") != null) + ", " + cache.stats());
+        }
+
+        //Concurrent runs share the cache and agree with uncached runs
+        final ResultCache shared = new ResultCache(1 << 16, ResultCache.Policy.TINY_LFU);
+        final String[] inputs = new String[64];
+        final String[] expected = new String[inputs.length];
+        CompilerFrontend plain = new CompilerFrontendImpl();
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = i + ".5 / (" + (i % 7) + ".0 - 0.25) * 2.0";
+            expected[i] = plain.run(inputs[i]).toString();
+        }
+        final boolean[] agree = new boolean[4];
+        Thread[] threads = new Thread[agree.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                CompilerFrontend f = new CompilerFrontendImpl();
+                f.set_cache(shared);
+                boolean ok = true;
+                try {
+                    for (int round = 0; round < 50; round++) {
+                        for (int i = 0; i < inputs.length; i++) {
+                            ok &= f.run(inputs[(i + id * 16) % inputs.length]).toString().equals(expected[(i + id * 16) % inputs.length]);
+                        }
+                    }
+                } catch (Exception e) {
+                    ok = false;
+                }
+                agree[id] = ok;
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        ResultCache.Stats stats = shared.stats();
+        System.out.println("concurrent cached runs agree (should be true): " + (agree[0] && agree[1] && agree[2] && agree[3]));
+        System.out.println("every run counted (should be true): " + (stats.hits + stats.misses == 4 * 50 * inputs.length) + ", entries: " + stats.entries);
+
+        //Changing how runs compile empties the cache
+        front.set_cache(shared);
+        front.set_optimizer(ExprOptimizer.FOLD);
+        System.out.println("cache emptied, entries: " + shared.stats().entries + ", run: " + front.run(inputs[0]));
+        front.set_optimizer(null);
+        front.set_cache(null);
+    }
+
+    public static void test_shared_lexer() throws Exception {
+        CompilerFrontend front1 = new CompilerFrontendImpl();
+        CompilerFrontend front2 = new CompilerFrontendImpl();
+        front1.init_lexer();
+        front2.init_lexer();
+        System.out.println("lexer is shared (should be true): " + (front1.lex == front2.lex));
+
+        String input = "100.0 + .02 -032.1* (   0.2 / 3.5) /\n\t 4.05";
+        String expected = front1.run(input).toString();
+        boolean[] agree = new boolean[4];
+        Thread[] threads = new Thread[agree.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                CompilerFrontend front = new CompilerFrontendImpl();
+                agree[id] = true;
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        agree[id] &= front.run(input).toString().equals(expected);
+                    }
+                } catch (Exception e) {
+                    agree[id] = false;
+                }
+            });
+            threads[t].start();
+        }
+        boolean all = true;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            all &= agree[t];
+        }
+        System.out.println("concurrent runs agree (should be true): " + all);
+
+        //Compiling a frozen lexer again would swap its DFA under running scans
+        LexerImpl shared = (LexerImpl) front1.lex;
+        LexerDFA dfa = shared.compiled;
+        shared.compile();
+        System.out.println("frozen lexer keeps its DFA (should be true): " + (shared.compiled == dfa));
+    }
+
+    public static void test_batch() {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        List<String> inputs = new ArrayList<String>();
+        inputs.add("1.0 + 2.0 * 3.0");
+        inputs.add("(1.0 - 2.0 + 3.0");
+        inputs.add("8.0 / 4.0 / 2.0");
+        inputs.add("1.0 $ 2.0");
+        //NaN is a value too, and is printed like any other
+        inputs.add("0.0 / 0.0");
+        for (BatchResult r : front.run_batch(inputs, true)) {
+            System.out.println(r);
+        }
+
+        //Results stay in input order
+        List<String> many = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            many.add(i + ".0 * 2.0");
+        }
+        List<BatchResult> results = front.run_batch(many, true);
+        boolean in_order = true;
+        for (int i = 0; i < many.size(); i++) {
+            in_order &= results.get(i).getValue() == i * 2.0f;
+        }
+        System.out.println("batch results in order (should be true): " + in_order);
+    }
+
+    public static void test_parallel_lexer() {
+        LexerImpl lex = CompilerFrontendImpl.build_lexer();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        String input = "12.5 + (3.25 * 100.0)   - 7.75 /2.0 + 0.125";
+        String expected = lex.scan_stream(input, false).toString();
+        //Tiny chunks put boundaries inside numbers and whitespace runs
+        boolean same = true;
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            same &= lex.scan_parallel(input, false, pool, chunk).toString().equals(expected);
+            same &= lex.scan_parallel(input, true, pool, chunk).toString().equals(lex.scan_stream(input, true).toString());
+        }
+        System.out.println("parallel scan matches scan_stream for chunks of 1 to 8 chars (should be true): " + same);
+        System.out.println("parallel scan: " + lex.scan_parallel(input, false, pool, 5));
+
+        //A chunk starting at "5" speculates a lexing error there, but the real error is further on
+        try {
+            lex.scan_parallel("1.5 + 2.", false, pool, 2);
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+        }
+        pool.shutdown();
+    }
+
+    public static void test_token_reader() throws Exception {
+        LexerImpl lex = CompilerFrontendImpl.build_lexer();
+        String input = "100.0 + .02 -032.1* (   0.2 / 3.5) /\n\t 4.05";
+        TokenStream stream = lex.scan_stream(input, false);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < stream.size(); i++) {
+            expected.add(stream.token(i).toString());
+        }
+
+        //An 8 char ring, fed one char per read: most tokens straddle the end of the ring
+        Reader slow = new java.io.FilterReader(new StringReader(input)) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws java.io.IOException {
+                return super.read(cbuf, off, Math.min(len, 1));
+            }
+        };
+        TokenReader reader = lex.scan_reader(slow, false, 8);
+        List<Token> tokens = new ArrayList<Token>();
+        reader.forEachRemaining(tokens::add);
+        System.out.println(tokens);
+        System.out.println("same tokens as scan_stream (should be true): " + tokens.toString().equals(expected.toString()));
+
+        //Non-maximal-munch lexer, skipped tokens kept, read from a channel
+        LexerImpl plain = new LexerImpl();
+        for (TokenType ty : lex.automata.keySet()) {
+            plain.add_automaton(ty, lex.automata.get(ty));
+        }
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+        reader = plain.scan_channel(channel, StandardCharsets.US_ASCII, true);
+        StringBuilder positions = new StringBuilder();
+        tokens.clear();
+        while (reader.hasNext()) {
+            tokens.add(reader.next());
+            positions.append(reader.position()).append(" ");
+        }
+        System.out.println("channel tokens match (should be true): " + tokens.toString().replace(", ", "; ").equals(plain.scan(input).toString()));
+        System.out.println("token positions: " + positions.toString().trim());
+
+        //The reader is closed even when the scan fails
+        boolean[] closed = new boolean[1];
+        Reader failing = new StringReader("1.0 + 123456789.0") {
+            @Override
+            public void close() {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        try (TokenReader r = lex.scan_reader(failing, false, 8)) {
+            r.forEachRemaining(t -> { });
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+        }
+        System.out.println("reader closed after the error (should be true): " + closed[0]);
+
+        //A long generated input goes through a 64 char ring
+        Reader big = new Reader() {
+            int left = 1000000;
+            String chunk = "(1.5 * 2.0) - 0.25 + ";
+            int at = 0;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) {
+                if (left == 0) {
+                    return -1;
+                }
+                int n = 0;
+                while (n < len && left > 0) {
+                    cbuf[off + n++] = chunk.charAt(at);
+                    at = (at + 1) % chunk.length();
+                    if (at == 0) {
+                        left--;
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        int count = 0;
+        for (reader = lex.scan_reader(big, false, 64); reader.hasNext(); reader.next()) {
+            count++;
+        }
+        System.out.println("tokens from a " + 21000000 + " char input: " + count);
+    }
+
+    public static void test_run_file() throws Exception {
+        Path file = Files.createTempFile("exprs", ".txt");
+        try {
+            Files.write(file, "1.0 + 2.0 * 3.0\n\n(4.0 - 1.0) / 2.0\r\n(1.0 + 2.0\n 8.0 / 4.0 / 2.0".getBytes(StandardCharsets.US_ASCII));
+            CompilerFrontend front = new CompilerFrontendImpl();
+            for (BatchResult r : front.run_file(file, true)) {
+                System.out.println(r);
+            }
+
+            //Enough lines that the file is split into several parallel ranges
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 50000; i++) {
+                text.append(i).append(".0 * 2.0\n");
+            }
+            Files.write(file, text.toString().getBytes(StandardCharsets.US_ASCII));
+            List<BatchResult> results = front.run_file(file, true);
+            boolean in_order = results.size() == 50000;
+            for (int i = 0; i < results.size(); i++) {
+                in_order &= results.get(i).getValue() == i * 2.0f;
+            }
+            System.out.println("file results in order (should be true): " + in_order);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public static void test_incremental() throws Exception {
+        CompilerFrontend front = new CompilerFrontendImpl();
+        IncrementalParse doc = front.run_incremental("1.0 + (2.0 * 3.0) - 4.0 / 5.0");
+        System.out.println(doc.getExpr());
+        String[][] edits = {
+            //offset, deleted, inserted
+            {"0", "1", "7"},
+            {"10", "0", "   "},
+            {"14", "1", "-"},
+            {"26", "0", "2"},
+            {"28", "1", "*"},
+            {"6", "0", "("},
+            {"6", "1", ""},
+            {"0", "0", "("},
+        };
+        for (String[] edit : edits) {
+            String result;
+            try {
+                result = doc.edit(Integer.parseInt(edit[0]), Integer.parseInt(edit[1]), edit[2]).toString();
+            } catch (Exception e) {
+                result = "error: " + e.getMessage();
+            }
+            System.out.println(doc.getInput() + " => " + result + " (relexed " + doc.relexed + ", reparsed " + doc.reparsed + ")");
+        }
+        doc.edit(0, 1, "");
+        System.out.println("same as a full run (should be true): " + doc.getExpr().toString().equals(front.run(doc.getInput()).toString()));
+
+        //One keystroke in a long expression re-parses only the changed Lit
+        StringBuilder chain = new StringBuilder("1.0");
+        for (int i = 0; i < 100000; i++) {
+            chain.append(" + (2.0 * 3.0)");
+        }
+        doc = front.run_incremental(chain.toString());
+        doc.edit(700011, 1, "/");
+        System.out.println("relexed " + doc.relexed + ", reparsed " + doc.reparsed + " of " + doc.getTokens().size() + " tokens, value " + CompiledExpr.compile(doc.getExpr()).eval());
+
+        //In a long flat sum, changing an operator or adding a term re-parses only the terms next to it
+        StringBuilder flat = new StringBuilder("1.0");
+        for (int i = 0; i < 100000; i++) {
+            flat.append(" + 2.0 * 3.0");
+        }
+        doc = front.run_incremental(flat.toString());
+        doc.edit(600004, 1, "-");
+        System.out.println("operator changed: relexed " + doc.relexed + ", reparsed " + doc.reparsed + " of " + doc.getTokens().size() + " tokens");
+        doc.edit(600015, 0, " + 1.0");
+        System.out.println("term added: relexed " + doc.relexed + ", reparsed " + doc.reparsed + " of " + doc.getTokens().size() + " tokens");
+        doc.edit(600010, 1, "/");
+        System.out.println("MulOp changed: relexed " + doc.relexed + ", reparsed " + doc.reparsed + " of " + doc.getTokens().size() + " tokens");
+
+        //Edits at both ends and back near the start move the gaps over the whole input
+        doc.edit(0, 3, "(4.0 - 1.0)");
+        doc.edit(doc.getInput().length() - 3, 3, "(3.0 * (2.0))");
+        doc.edit(12011, 0, " * (1.0 + 1.0)");
+        System.out.println("group added: relexed " + doc.relexed + ", reparsed " + doc.reparsed + " of " + doc.getTokens().size() + " tokens");
+        float value = CompiledExpr.compile(doc.getExpr()).eval();
+        System.out.println("same value as a full run (should be true): " + (value == CompiledExpr.compile(front.run(doc.getInput())).eval()) + ", " + value);
+    }
+
+    public static void test_metrics() throws Exception {
+        HistogramMetrics metrics = new HistogramMetrics();
+        CompilerFrontend front = new CompilerFrontendImpl();
+        front.set_metrics(metrics);
+        front.run("1.0 + (2.0 * 3.0)");
+        front.run("12.5/.5 - 1.0");
+        List<String> inputs = new ArrayList<String>();
+        inputs.add("1.0 * 2.0");
+        inputs.add("1.0 +");
+        front.run_batch(inputs, false);
+
+        //A debug run keeps whitespace, so it also times removeWhitespace
+        CompilerFrontend debug_front = new CompilerFrontendImpl(true);
+        debug_front.set_metrics(metrics);
+        debug_front.run("(1.0)\t/ 2.0");
+
+        //Batches look inputs up in the cache too, and every lookup is reported
+        front.set_cache(new ResultCache(1000, ResultCache.Policy.LRU));
+        front.run("1.0 * 2.0");
+        front.run_batch(inputs, false);
+        System.out.println("cache hits: " + metrics.cache_hits() + ", misses: " + metrics.cache_misses());
+        front.set_cache(null);
+
+        front.set_metrics(null);
+        front.run("1.0 + 1.0");
+
+        for (MetricsListener.Phase phase : MetricsListener.Phase.values()) {
+            System.out.println(phase + " runs: " + metrics.count(phase));
+        }
+        for (TokenType ty : TokenType.values()) {
+            System.out.print(ty + "=" + metrics.tokens(ty) + " ");
+        }
+        System.out.println();
+        System.out.println("automaton steps: " + metrics.steps() + ", backtracks: " + metrics.backtracks());
+        System.out.println("quantiles ordered (should be true): "
+            + (metrics.quantile_nanos(MetricsListener.Phase.SCAN, 0.5) <= metrics.quantile_nanos(MetricsListener.Phase.SCAN, 0.99)
+               && metrics.quantile_nanos(MetricsListener.Phase.SCAN, 0.99) <= metrics.max_nanos(MetricsListener.Phase.SCAN)));
+        System.out.println("scrape has every metric (should be true): " + (metrics.toString().split("\n").length == 4 * 5 + TokenType.values().length + 5));
+    }
+
     static Expr test_compiler(String input) throws Exception {
         CompilerFrontend front = new CompilerFrontendImpl(true);
         return front.run(input);
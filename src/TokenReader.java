@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Scans tokens from a Reader one at a time, with the same rules as
+ * LexerImpl.scan_stream. Chars are pulled into a fixed-size ring buffer
+ * only when the scanner needs them, so memory stays bounded however long
+ * the input is, and the first token is returned as soon as its chars (and
+ * the one char after it) have arrived.
+ *
+ * A token may straddle the end of the ring: the buffer keeps every char
+ * from the start of the current token on, and only those chars are
+ * overwritten once the token is returned. The one limit is that a token,
+ * together with the lookahead needed to end it, must fit in the buffer.
+ * Longer tokens are reported as a lexing error.
+ *
+ * Read errors are rethrown as UncheckedIOException, since Iterator methods
+ * cannot throw IOException. Closing the TokenReader closes the Reader or
+ * channel it reads from, so it belongs in a try-with-resources.
+ */
+public class TokenReader implements Iterator<Token>, Closeable {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    final LexerDFA dfa;
+    final boolean maximal_munch;
+    //Tokens of these types are matched but not returned
+    final boolean[] drop;
+    final Reader in;
+
+    //Ring buffer: the char at offset p is buf[p & mask] for pos <= p < buf_end
+    final char[] buf;
+    final int mask;
+    //Offset of the next token's first char, and one past the last char read
+    long pos;
+    long buf_end;
+    boolean eof;
+
+    //Token found by hasNext but not yet returned by next, and where it started
+    Token pending;
+    long pending_start;
+    long last_start = -1;
+
+    //Maximal munch only: see LexerImpl.scan_longest
+    int[] trail = new int[16];
+    BitSet failed;
+    long failed_base;
+    long failed_end;
+
+    TokenReader(LexerImpl lexer, Reader in_, boolean keep_skipped, int capacity) {
+        if (lexer.compiled == null) {
+            lexer.compile();
+        }
+        if (lexer.compiled == null) {
+            throw new IllegalStateException("Only lexers built from AutomatonImpl or DFAImpl automata can scan a Reader");
+        }
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Buffer capacity must be at least 2, got " + capacity);
+        }
+        dfa = lexer.compiled;
+        maximal_munch = lexer.maximal_munch;
+        drop = keep_skipped ? LexerImpl.NO_SKIPS : lexer.skipped;
+        in = in_;
+        //Round up to a power of two so that wrapping is a mask
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        buf = new char[size];
+        mask = size - 1;
+    }
+
+    /*
+     * Decodes the bytes of "channel" with "charset" and scans them.
+     */
+    TokenReader(LexerImpl lexer, ReadableByteChannel channel, Charset charset, boolean keep_skipped, int capacity) {
+        this(lexer, Channels.newReader(channel, charset.newDecoder(), capacity), keep_skipped, capacity);
+    }
+
+    /*
+     * Returns true if another token can be read. Scans that token if it
+     * has not been scanned yet, so lexing errors are thrown from here.
+     */
+    @Override
+    public boolean hasNext() {
+        while (pending == null) {
+            if (!available(pos)) {
+                return false;
+            }
+            pending_start = pos;
+            pending = maximal_munch ? scan_longest() : scan_first_accept();
+        }
+        return true;
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Token ret = pending;
+        pending = null;
+        last_start = pending_start;
+        return ret;
+    }
+
+    /*
+     * Offset in the input of the first char of the token last returned by
+     * next, or -1 before the first call.
+     */
+    public long position() {
+        return last_start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*
+     * Makes sure the char at offset p is in the buffer, reading more input
+     * if needed. Returns false if the input ends before p.
+     */
+    boolean available(long p) {
+        while (p >= buf_end && !eof) {
+            int free = buf.length - (int) (buf_end - pos);
+            if (free == 0) {
+                throw new RuntimeException("Lexing error: token at position " + pos + " is longer than the " + buf.length + " char buffer");
+            }
+            int off = (int) (buf_end & mask);
+            int n;
+            try {
+                n = in.read(buf, off, Math.min(free, buf.length - off));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (n == -1) {
+                eof = true;
+            } else {
+                buf_end += n;
+            }
+        }
+        return p < buf_end;
+    }
+
+    char at(long p) {
+        return buf[(int) (p & mask)];
+    }
+
+    String lexeme(long start, long end) {
+        int from = (int) (start & mask);
+        int length = (int) (end - start);
+        if (from + length <= buf.length) {
+            return new String(buf, from, length);
+        }
+        //The token wraps around the end of the ring
+        StringBuilder ret = new StringBuilder(length);
+        ret.append(buf, from, buf.length - from);
+        ret.append(buf, 0, length - (buf.length - from));
+        return ret.toString();
+    }
+
+    /*
+     * Scans the token at pos as in LexerImpl.scan_first_accept. Returns
+     * null if that token is dropped.
+     */
+    Token scan_first_accept() {
+        long start_pos = pos;
+        int state = dfa.start_state;
+        long current_pos = start_pos;
+        int ty = LexerDFA.DEAD;
+        while (available(current_pos)) {
+            state = dfa.step(state, at(current_pos));
+            if (state == LexerDFA.DEAD) {
+                break;
+            }
+            current_pos++;
+            if (ty == LexerDFA.DEAD) {
+                ty = dfa.accept_type[state];
+            }
+        }
+
+        if (ty == LexerDFA.DEAD) {
+            throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+        }
+        return emit(ty, start_pos, current_pos);
+    }
+
+    /*
+     * Scans the token at pos as in LexerImpl.scan_longest, with the same
+     * dead-end memo. Returns null if that token is dropped.
+     */
+    Token scan_longest() {
+        int num_states = dfa.num_states;
+        long start_pos = pos;
+        if (failed != null && start_pos >= failed_end) {
+            failed.clear();
+            failed_base = start_pos;
+        } else if (failed != null && start_pos - failed_base > buf.length) {
+            //Dead ends before start_pos are never looked up again, drop them to keep the memo bounded
+            failed = failed.get((int) (start_pos - failed_base) * num_states, (int) (failed_end - failed_base) * num_states);
+            failed_base = start_pos;
+        }
+
+        int state = dfa.start_state;
+        long current_pos = start_pos;
+        long last_end = -1;
+        int last_ty = LexerDFA.DEAD;
+        trail[0] = state;
+        while (available(current_pos)) {
+            if (failed != null && current_pos >= failed_base && current_pos < failed_end
+                    && failed.get((int) (current_pos - failed_base) * num_states + state)) {
+                break;
+            }
+            state = dfa.step(state, at(current_pos));
+            if (state == LexerDFA.DEAD) {
+                break;
+            }
+            current_pos++;
+            int length = (int) (current_pos - start_pos);
+            if (length >= trail.length) {
+                trail = Arrays.copyOf(trail, trail.length * 2);
+            }
+            trail[length] = state;
+            if (dfa.accept_type[state] != LexerDFA.DEAD) {
+                last_end = current_pos;
+                last_ty = dfa.accept_type[state];
+            }
+        }
+
+        if (last_ty == LexerDFA.DEAD) {
+            throw new RuntimeException("Lexing error: no token matches input at position " + start_pos);
+        }
+
+        if (current_pos > last_end) {
+            if (failed == null) {
+                failed = new BitSet();
+                failed_base = start_pos;
+            }
+            for (long p = last_end; p <= current_pos; p++) {
+                failed.set((int) (p - failed_base) * num_states + trail[(int) (p - start_pos)]);
+            }
+            failed_end = Math.max(failed_end, current_pos + 1);
+        }
+        return emit(last_ty, start_pos, last_end);
+    }
+
+    Token emit(int ty, long start, long end) {
+        Token ret = drop[ty] ? null : new Token(LexerDFA.TYPES[ty], lexeme(start, end));
+        //The token's chars may now be overwritten
+        pos = end;
+        return ret;
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.Arrays;
+
+/*
+ * A compact sequence of tokens over one input. Token i is stored as its
+ * type ordinal and its [start, end) offsets into "input" in three
+ * parallel arrays, so adding a token allocates nothing beyond the
+ * occasional array growth. Lexemes and Token objects are only created
+ * when asked for.
+ */
+public class TokenStream {
+    static final TokenType[] TYPES = TokenType.values();
+    //number() converts digit strings below this value exactly as floats
+    static final int FAST_LIMIT = 1 << 24;
+    //Powers of ten that are exact floats
+    static final float[] POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    CharSequence input;
+    byte[] types;
+    int[] starts;
+    int[] ends;
+    int size;
+    //Set by the scan that produced this stream: DFA transitions taken, and chars read past a token end that were read again
+    long steps;
+    long backtracks;
+
+    public TokenStream(CharSequence input_) {
+        this(input_, 16);
+    }
+
+    public TokenStream(CharSequence input_, int capacity) {
+        input = input_;
+        capacity = Math.max(capacity, 1);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        size = 0;
+    }
+
+    /*
+     * Builds a stream over the concatenated lexemes of "lst".
+     */
+    public static TokenStream from_list(TokenList lst) {
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        for (TokenList cur = lst; cur != null; cur = cur.rest) {
+            text.append(cur.elem.lexeme);
+            count++;
+        }
+
+        TokenStream ret = new TokenStream(text.toString(), count);
+        int pos = 0;
+        for (TokenList cur = lst; cur != null; cur = cur.rest) {
+            ret.add(cur.elem.ty.ordinal(), pos, pos + cur.elem.lexeme.length());
+            pos += cur.elem.lexeme.length();
+        }
+        return ret;
+    }
+
+    public void add(int type, int start, int end) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = (byte) type;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int start(int i) {
+        return starts[i];
+    }
+
+    public int end(int i) {
+        return ends[i];
+    }
+
+    public String lexeme(int i) {
+        return input.subSequence(starts[i], ends[i]).toString();
+    }
+
+    public Token token(int i) {
+        return new Token(type(i), lexeme(i));
+    }
+
+    /*
+     * Returns Float.parseFloat(lexeme(i)) for a NUM token. Literals of at
+     * most 10 decimals whose digits, read as an integer, are below 2^24
+     * are converted straight from the input without creating the lexeme:
+     * both the digits and the power of ten are exact floats then, so one
+     * correctly rounded division gives the same float as parseFloat
+     * (Clinger's fast path). Anything else goes through parseFloat.
+     */
+    public float number(int i) {
+        int mantissa = 0;
+        int decimals = -1;
+        for (int p = starts[i]; p < ends[i]; p++) {
+            char c = input.charAt(p);
+            if (c == '.' && decimals == -1) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9' && mantissa < FAST_LIMIT / 10) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (decimals != -1) {
+                    decimals++;
+                }
+            } else {
+                return Float.parseFloat(lexeme(i));
+            }
+        }
+        if (decimals >= POW10.length) {
+            return Float.parseFloat(lexeme(i));
+        }
+        return (float) mantissa / POW10[Math.max(decimals, 0)];
+    }
+
+    /*
+     * Returns a stream over the same input without the tokens of type "ty".
+     */
+    public TokenStream without(TokenType ty) {
+        TokenStream ret = new TokenStream(input, size);
+        for (int i = 0; i < size; i++) {
+            if (types[i] != ty.ordinal()) {
+                ret.add(types[i], starts[i], ends[i]);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Appends tokens [from, to) of "s", which must be over the same input.
+     */
+    void add_all(TokenStream s, int from, int to) {
+        int count = to - from;
+        if (size + count > types.length) {
+            int capacity = Math.max(size + count, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        System.arraycopy(s.types, from, types, size, count);
+        System.arraycopy(s.starts, from, starts, size, count);
+        System.arraycopy(s.ends, from, ends, size, count);
+        size += count;
+    }
+
+    /*
+     * Materializes the stream as a TokenList. Returns null if it is empty,
+     * like a lexer that found no tokens.
+     */
+    public TokenList to_list() {
+        TokenList ret = null;
+        for (int i = size - 1; i >= 0; i--) {
+            ret = new TokenList(token(i), ret);
+        }
+        return ret;
+    }
+
+    public String toString() {
+        StringBuilder ret = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                ret.append("; ");
+            }
+            ret.append(type(i).toString()).append("(\"").append(input, starts[i], ends[i]).append("\")");
+        }
+        return ret.append("]").toString();
+    }
+}